@@ -50,7 +50,10 @@ package org.knime.knip.view3d;
 
 import java.awt.Component;
 import java.awt.GraphicsEnvironment;
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.imagej.ImgPlus;
@@ -62,6 +65,7 @@ import org.knime.core.node.config.ConfigWO;
 import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.base.nodes.view.TableCellView;
 import org.knime.knip.base.nodes.view.TableCellViewFactory;
+import org.knime.knip.view3d.image.Viewer3DNodeDiskCache;
 import org.knime.knip.view3d.image.Viewer3DNodeImageAdmin;
 import org.knime.knip.view3d.image.Viewer3DNodeNotEnoughDimsException;
 
@@ -73,99 +77,201 @@ import org.knime.knip.view3d.image.Viewer3DNodeNotEnoughDimsException;
  */
 public class CellView3DFactory implements TableCellViewFactory {
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public TableCellView[] createTableCellViews() {
-        if (!GraphicsEnvironment.isHeadless()) {
-            if (Viewer3DNodeActivator.VTKLoaded()) {
-                return new TableCellView[]{new TableCellView() {
+    // the number of images whose converted volumes are kept while browsing through a table
+    private static final int MAX_ADMINS = 8;
 
-                    Viewer3DNodeMain renderer = new Viewer3DNodeMain();
+    // the number of shown images that are remembered to guess the next one
+    private static final int MAX_TRAIL = 64;
 
-                    private final Map<ImgPlus, Viewer3DNodeImageAdmin> m_admins =
-                            new HashMap<ImgPlus, Viewer3DNodeImageAdmin>();
+    private static final String CFG_LOOKAHEAD = "lookahead";
 
-                    @Override
-                    public Component getViewComponent() {
-                        // if there is an old renderer, delete it and create a
-                        // new
-                        // one
-                        if (renderer != null) {
-                            renderer.delete();
-                        }
+    private static final String CFG_DISK_CACHE = "diskCache";
 
-                        renderer = new Viewer3DNodeMain();
+    private boolean m_lookahead = true;
 
-                        return renderer;
-                    }
+    // off unless asked for, as the converted volumes can take a lot of disk space
+    private boolean m_diskCache = Boolean.getBoolean("org.knime.knip.vtk.diskcache");
 
-                    @Override
-                    public void updateComponent(final DataValue valueToView) {
-                        final ImgPlus imgPlus = ((ImgPlusValue)valueToView).getImgPlus();
-
-                        Viewer3DNodeImageAdmin admin = null;
-
-                        // see if the admins are still cached
-                        if (m_admins.containsKey(imgPlus)) {
-                            admin = m_admins.get(imgPlus);
-                        } else {
-                            try {
-                                admin = new Viewer3DNodeImageAdmin(imgPlus, renderer.getEventService());
-                            } catch (final Viewer3DNodeNotEnoughDimsException e) {
-                                admin = null;
-                            } finally {
-                                m_admins.put(imgPlus, admin);
-                            }
-                        }
+    /**
+     * The 3D view of one table cell.<br>
+     *
+     * A cell view only gets to see the selected value, not the rows around it. So the view remembers the order in
+     * which the images were shown and, when the user browses back and forth, looks ahead along that trail.
+     */
+    private final class CellView3D implements TableCellView {
 
-                        renderer.setAdmin(admin);
-                    }
+        private Viewer3DNodeMain renderer = new Viewer3DNodeMain();
 
+        // in access order, so that the images that have not been looked at for the longest time are deleted first
+        private final Map<ImgPlus, Viewer3DNodeImageAdmin> m_admins =
+                new LinkedHashMap<ImgPlus, Viewer3DNodeImageAdmin>(16, 0.75f, true) {
                     @Override
-                    public void onClose() {
-                        // delte all the admins
-                        for (final Viewer3DNodeImageAdmin admin : m_admins.values()) {
-                            if (admin != null) {
-                                admin.delete();
+                    protected boolean removeEldestEntry(final Map.Entry<ImgPlus, Viewer3DNodeImageAdmin> eldest) {
+                        // never delete the admin that is shown, the map shrinks again once it is no longer eldest
+                        if ((size() > MAX_ADMINS) && (eldest.getValue() != m_shown)) {
+                            if (eldest.getValue() != null) {
+                                eldest.getValue().delete();
                             }
+                            return true;
                         }
+                        return false;
+                    }
+                };
+
+        // the images in the order they were first shown, weakly so the trail does not keep them alive
+        private final List<WeakReference<ImgPlus>> m_trail = new ArrayList<WeakReference<ImgPlus>>();
+
+        private WeakReference<ImgPlus> m_previous = null;
 
-                        // delete the renderer
-                        renderer.delete();
+        private Viewer3DNodeImageAdmin m_shown = null;
+
+        private CellView3D() {
+            // only created by the factory
+        }
 
-                        renderer = null;
-                        m_admins.clear();
+        @Override
+        public Component getViewComponent() {
+            // if there is an old renderer, delete it and create a
+            // new
+            // one
+            if (renderer != null) {
+                renderer.delete();
+            }
+
+            renderer = new Viewer3DNodeMain();
+
+            return renderer;
+        }
+
+        @Override
+        public void updateComponent(final DataValue valueToView) {
+            final ImgPlus imgPlus = ((ImgPlusValue)valueToView).getImgPlus();
+
+            m_shown = getAdmin(imgPlus);
+            renderer.setAdmin(m_shown);
+
+            followTrail(imgPlus);
+        }
+
+        /**
+         * Preload the image next to the shown one on the trail, in the direction the user is browsing.
+         */
+        private void followTrail(final ImgPlus imgPlus) {
+            final int index = indexOnTrail(imgPlus);
+            final int previous = m_previous == null ? -1 : indexOnTrail(m_previous.get());
+            m_previous = new WeakReference<ImgPlus>(imgPlus);
+
+            if (index < 0) {
+                m_trail.add(new WeakReference<ImgPlus>(imgPlus));
+                if (m_trail.size() > MAX_TRAIL) {
+                    m_trail.remove(0);
+                }
+            } else if (m_lookahead && (previous >= 0) && (previous != index)) {
+                final int next = index > previous ? index + 1 : index - 1;
+                if ((next >= 0) && (next < m_trail.size())) {
+                    final ImgPlus nextImgPlus = m_trail.get(next).get();
+                    if (nextImgPlus != null) {
+                        preload(nextImgPlus);
                     }
+                }
+            }
+        }
 
-                    @Override
-                    public String getName() {
-                        return "VTK 3D View";
+        private int indexOnTrail(final ImgPlus imgPlus) {
+            if (imgPlus != null) {
+                for (int i = 0; i < m_trail.size(); i++) {
+                    if (m_trail.get(i).get() == imgPlus) {
+                        return i;
                     }
+                }
+            }
+            return -1;
+        }
 
-                    @Override
-                    public String getDescription() {
-                        return "Allows one to render image in 3D. Please note if you are on a Linux machine with a NVIDIA GPU and more than one monitor please don't move the Viewer on a different monitor than the one it popped up at.";
-                    };
+        private void preload(final ImgPlus imgPlus) {
+            final Viewer3DNodeImageAdmin admin = getAdmin(imgPlus);
+            if ((admin != null) && (admin != m_shown)) {
+                admin.preload();
+            }
+        }
 
-                    @Override
-                    public void loadConfigurationFrom(final ConfigRO config) {
+        private Viewer3DNodeImageAdmin getAdmin(final ImgPlus imgPlus) {
+            Viewer3DNodeImageAdmin admin = null;
 
+            // see if the admins are still cached
+            if (m_admins.containsKey(imgPlus)) {
+                admin = m_admins.get(imgPlus);
+            } else {
+                try {
+                    admin = new Viewer3DNodeImageAdmin(imgPlus, renderer.getEventService());
+                    if (m_diskCache) {
+                        admin.setDiskCache(Viewer3DNodeDiskCache.getDefault());
                     }
+                } catch (final Viewer3DNodeNotEnoughDimsException e) {
+                    admin = null;
+                } finally {
+                    m_admins.put(imgPlus, admin);
+                }
+            }
 
-                    @Override
-                    public void saveConfigurationTo(final ConfigWO config) {
+            return admin;
+        }
 
-                    }
+        @Override
+        public void onClose() {
+            // delte all the admins
+            for (final Viewer3DNodeImageAdmin admin : m_admins.values()) {
+                if (admin != null) {
+                    admin.delete();
+                }
+            }
 
-                    @Override
-                    public void onReset() {
+            // delete the renderer
+            renderer.delete();
 
-                    }
+            renderer = null;
+            m_shown = null;
+            m_admins.clear();
+            m_trail.clear();
+            m_previous = null;
+        }
 
-                }};
+        @Override
+        public String getName() {
+            return "VTK 3D View";
+        }
 
+        @Override
+        public String getDescription() {
+            return "Allows one to render image in 3D. Please note if you are on a Linux machine with a NVIDIA GPU and more than one monitor please don't move the Viewer on a different monitor than the one it popped up at.";
+        };
+
+        @Override
+        public void loadConfigurationFrom(final ConfigRO config) {
+            m_lookahead = config.getBoolean(CFG_LOOKAHEAD, m_lookahead);
+            m_diskCache = config.getBoolean(CFG_DISK_CACHE, m_diskCache);
+        }
+
+        @Override
+        public void saveConfigurationTo(final ConfigWO config) {
+            config.addBoolean(CFG_LOOKAHEAD, m_lookahead);
+            config.addBoolean(CFG_DISK_CACHE, m_diskCache);
+        }
+
+        @Override
+        public void onReset() {
+
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TableCellView[] createTableCellViews() {
+        if (!GraphicsEnvironment.isHeadless()) {
+            if (Viewer3DNodeActivator.VTKLoaded()) {
+                return new TableCellView[]{new CellView3D()};
             } else {
                 NodeLogger.getLogger(CellView3DFactory.class).warn("VTK not available.");
             }
@@ -174,6 +280,47 @@ public class CellView3DFactory implements TableCellViewFactory {
 
     }
 
+    /**
+     * Sets whether the views convert the images that are likely shown next in the background, i.e. the neighbours on
+     * the trail of shown images. Enabled by default, the views store the setting in their configuration.
+     *
+     * @param lookahead whether to look ahead
+     */
+    public final void setLookahead(final boolean lookahead) {
+        m_lookahead = lookahead;
+    }
+
+    /**
+     * Gets whether the views look ahead.
+     *
+     * @return whether the views look ahead
+     */
+    public final boolean isLookahead() {
+        return m_lookahead;
+    }
+
+    /**
+     * Sets whether the views keep the converted volumes in {@link Viewer3DNodeDiskCache#getDefault()}, so that they
+     * need not be converted again in a later session. Applies to the images shown from now on.<br>
+     *
+     * Disabled by default, unless the system property {@code org.knime.knip.vtk.diskcache} is {@code true}, the views
+     * store the setting in their configuration.
+     *
+     * @param diskCache whether to cache on disk
+     */
+    public final void setDiskCache(final boolean diskCache) {
+        m_diskCache = diskCache;
+    }
+
+    /**
+     * Gets whether the views cache the converted volumes on disk.
+     *
+     * @return whether the views cache on disk
+     */
+    public final boolean isDiskCache() {
+        return m_diskCache;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -62,6 +62,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
@@ -74,11 +77,15 @@ import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
+import javax.swing.JSpinner;
 import javax.swing.JTabbedPane;
 import javax.swing.LayoutStyle;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingWorker;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
@@ -92,6 +99,7 @@ import org.knime.knip.core.ui.imgviewer.panels.transfunc.NormalizationPerformedE
 import org.knime.knip.core.ui.imgviewer.panels.transfunc.TransferFunctionBundle;
 import org.knime.knip.core.ui.imgviewer.panels.transfunc.TransferFunctionControlPanel;
 import org.knime.knip.view3d.image.LoadImageEvent;
+import org.knime.knip.view3d.image.LoadSlabsEvent;
 import org.knime.knip.view3d.image.Viewer3DNodeImageAdmin;
 import org.knime.knip.view3d.image.Viewer3DNodeVolume;
 import org.knime.knip.view3d.render.Viewer3DNodeMainRenderer;
@@ -130,10 +138,39 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
 
         private final JProgressBar m_progress;
 
+        // whether the volumes are displayed while they are being filled
+        private final boolean m_stream;
+
+        // the volumes that have been filled by this worker, only complete once doInBackground returned
+        private final List<Viewer3DNodeVolume> m_filled = new ArrayList<Viewer3DNodeVolume>();
+
+        private volatile long m_lastRefresh = 0;
+
+        // only accessed on the EDT
+        private boolean m_shown = false;
+
+        // the load this one supersedes, it must have stopped before this one may start
+        private LoadImages m_previous;
+
+        // counted down as soon as doInBackground has returned, or in done if it never ran
+        private final CountDownLatch m_finished = new CountDownLatch(1);
+
+        // claimed by doInBackground, or by done if the load has been cancelled before it started
+        private final AtomicBoolean m_started = new AtomicBoolean(false);
+
+        // whether the load has been cancelled before it used the admin, m_previous may then still be running
+        private volatile boolean m_skipped = false;
+
+        private volatile boolean m_aborted = false;
+
         /**
          * Construct a new instance to load the currently selected images.
+         * 
+         * @param previous the load that is superseded by this one and has been cancelled, may be null
          */
-        public LoadImages() {
+        public LoadImages(final LoadImages previous) {
+            m_previous = previous;
+            m_stream = m_streaming;
             m_progress = new JProgressBar(0, 100);
             m_progress.setString("Loading Image, please wait ...");
             m_progress.setStringPainted(true);
@@ -161,11 +198,43 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
          */
         @Override
         public Void doInBackground() {
+            if (!m_started.compareAndSet(false, true)) {
+                return null;
+            }
+
+            try {
+                while (m_previous != null) {
+                    // the admin must not be used by two loads at once
+                    m_previous.m_finished.await();
 
-            m_volume = m_admin.getVolume(m_admin.getAxes().getManipulatedVolume());
+                    // it may have completed volumes whose values still need to be updated
+                    m_filled.addAll(m_previous.m_filled);
+
+                    // a load that never ran has not waited for its own predecessor
+                    m_previous = m_previous.m_skipped ? m_previous.m_previous : null;
+                }
+
+                load();
+            } catch (final InterruptedException e) {
+                // superseded while waiting for the previous load, which the next load has to wait for instead
+                m_skipped = true;
+                m_aborted = true;
+            } catch (final CancellationException e) {
+                // superseded by a newer load
+                m_aborted = true;
+            } finally {
+                m_finished.countDown();
+            }
+
+            return null;
+        }
+
+        private void load() {
+
+            m_volume = m_admin.getVolume(m_admin.getAxes().getManipulatedVolume(), m_stream);
 
             // get the new volumes
-            m_rendered = m_admin.getVolumes();
+            m_rendered = m_admin.getVolumes(m_stream);
 
             if (m_mode == Mode.GRAY) {
                 for (final Viewer3DNodeVolume v : m_rendered) {
@@ -183,7 +252,44 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
                 applyTFToVolumes();
             }
 
-            return null;
+            if (m_stream) {
+                // display the empty volumes and fill them afterwards
+                publish(0);
+
+                // all volumes are filled in one sweep
+                final List<Viewer3DNodeVolume> volumes = new ArrayList<Viewer3DNodeVolume>(m_rendered);
+                volumes.add(m_volume);
+                m_filled.addAll(m_admin.fillVolumes(volumes));
+            }
+
+            // load the next positions while the user looks at these
+            m_admin.prefetch();
+        }
+
+        /**
+         * Display the volumes while they are being filled.<br>
+         * 
+         * {@inheritDoc}
+         * 
+         * @see SwingWorker#process(List)
+         */
+        @Override
+        protected void process(final List<Integer> chunks) {
+            if (m_deleted || isCancelled() || m_aborted) {
+                return;
+            }
+
+            if (!m_shown) {
+                m_renderWindow.setVolumes(m_rendered);
+                m_sliceRenderer.setImages(m_rendered);
+                m_admin.setDisplayedVolumes(m_rendered);
+                m_shown = true;
+            }
+
+            for (final Viewer3DNodeVolume v : m_rendered) {
+                v.updateImage();
+            }
+            repaintImage();
         }
 
         /**
@@ -195,10 +301,28 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
          */
         @Override
         protected void done() {
-            if (!m_deleted) {
-                // render the new images
-                m_renderWindow.setVolumes(m_rendered);
-                m_sliceRenderer.setImages(m_rendered);
+            if (m_started.compareAndSet(false, true)) {
+                // cancelled before doInBackground ran, which it never will now
+                m_skipped = true;
+                m_finished.countDown();
+            }
+
+            if (!m_deleted && (isCancelled() || m_aborted)) {
+                // a newer load has taken over
+                m_panelNorth.remove(m_progress);
+                m_mainPanel.validate();
+            } else if (!m_deleted) {
+                // the values of the streamed volumes are complete now
+                for (final Viewer3DNodeVolume v : m_filled) {
+                    v.updateValues();
+                }
+
+                // render the new images, unless they are already shown
+                if (!m_shown) {
+                    m_renderWindow.setVolumes(m_rendered);
+                    m_sliceRenderer.setImages(m_rendered);
+                    m_admin.setDisplayedVolumes(m_rendered);
+                }
 
                 // remove progress bar
                 m_panelNorth.remove(m_progress);
@@ -244,6 +368,64 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
         public void onLoadImage(final LoadImageEvent e) {
             setProgress(e.getProgress());
         }
+
+        /**
+         * Called whenever some more slices of a volume have been filled in.<br>
+         * 
+         * The displayed volumes are refreshed at most every REFRESH_INTERVAL ms.
+         * 
+         * @param e the event
+         */
+        @EventListener
+        public void onLoadSlabs(final LoadSlabsEvent e) {
+            final long now = System.currentTimeMillis();
+            if (m_stream && !isDone() && ((now - m_lastRefresh) >= REFRESH_INTERVAL)) {
+                m_lastRefresh = now;
+                publish(e.getEnd());
+            }
+        }
+    }
+
+    /**
+     * Evaluates the transfer functions of the manipulated volume in the background and applies them on the EDT,
+     * followed by a single repaint. The other rendered volumes share these functions if force TF is active.<br>
+     * 
+     * Only one of these runs at a time. Changes made while it runs are picked up by the next one, so a burst of changes
+     * while a control point is dragged costs at most two passes.
+     */
+    private final class UpdateTransferFunctions extends SwingWorker<Void, Void> {
+
+        private final List<Viewer3DNodeVolume.TransferFunctionUpdate> m_updates;
+
+        private UpdateTransferFunctions(final List<Viewer3DNodeVolume.TransferFunctionUpdate> updates) {
+            m_updates = updates;
+        }
+
+        @Override
+        protected Void doInBackground() {
+            for (final Viewer3DNodeVolume.TransferFunctionUpdate u : m_updates) {
+                u.compute();
+            }
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            m_updating = null;
+            if (m_deleted) {
+                return;
+            }
+
+            // outdated updates are dropped, the next pass covers them
+            for (final Viewer3DNodeVolume.TransferFunctionUpdate u : m_updates) {
+                u.apply();
+            }
+            repaintImage();
+
+            if (m_updateAgain) {
+                scheduleTransferFunctions();
+            }
+        }
     }
 
     /**
@@ -251,9 +433,21 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
      */
     private static final long serialVersionUID = -6100896201596892945L;
 
+    // the minimal time in ms between two refreshes while a volume is streamed in
+    private static final long REFRESH_INTERVAL = 250;
+
     /* the image thread that is currently running */
     private LoadImages m_loading = null;
 
+    // the transfer functions that are being updated, only accessed on the EDT
+    private UpdateTransferFunctions m_updating = null;
+
+    // whether the transfer functions have changed again since m_updating was started
+    private boolean m_updateAgain = false;
+
+    // whether volumes are displayed while they are loaded
+    private boolean m_streaming = true;
+
     private Viewer3DNodeImageAdmin<T> m_admin = null;
 
     private Viewer3DNodeVolume m_volume;
@@ -279,6 +473,8 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
 
     private JList m_listMapper;
 
+    private JSpinner m_surfaceThreshold;
+
     private JPanel m_transferPanel = null;
 
     private JPanel m_panelSettings = null;
@@ -406,18 +602,27 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
             }
         });
 
+        final JCheckBox composite = new JCheckBox(new AbstractAction("Combine Volumes") {
+            @Override
+            public void actionPerformed(final ActionEvent event) {
+                m_renderWindow.toggleComposite();
+            }
+        });
+
         final int width = (int)camera.getPreferredSize().getWidth();
 
         final Component glue = Box.createVerticalGlue();
 
         layout.setHorizontalGroup(layout.createParallelGroup().addComponent(camera, width, width, width)
                 .addComponent(box, width, width, width).addComponent(boxShow, width, width, width)
-                .addComponent(boundingBox, width, width, width).addComponent(glue));
+                .addComponent(boundingBox, width, width, width).addComponent(composite, width, width, width)
+                .addComponent(glue));
 
         layout.setVerticalGroup(layout.createSequentialGroup().addComponent(camera)
                 .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED).addComponent(box)
                 .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED).addComponent(boxShow)
-                .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED).addComponent(boundingBox).addComponent(glue));
+                .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED).addComponent(boundingBox)
+                .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED).addComponent(composite).addComponent(glue));
 
         return panel;
     }
@@ -449,7 +654,7 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
 
     private JPanel setUpGeneralSettingsPanel() {
 
-        final String[] mappers = {"Smart Mapper", "FixedPointMapper", "3D Texture Map"};
+        final String[] mappers = {"Smart Mapper", "FixedPointMapper", "3D Texture Map", "Isosurface"};
         m_listMapper = new JList(mappers);
         m_listMapper.setSelectedIndex(0);
         m_listMapper.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -468,15 +673,25 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
                     case 2:
                         setMapper(Viewer3DNodeVolume.Mapper.TEXTURE3D);
                         break;
+                    case 3:
+                        setMapper(Viewer3DNodeVolume.Mapper.SURFACE);
+                        break;
                 }
             }
 
             private void setMapper(final Viewer3DNodeVolume.Mapper mapper) {
+                if ((mapper == Viewer3DNodeVolume.Mapper.SURFACE) && (m_volume != null)) {
+                    // start from the threshold the manipulated volume uses, for all volumes
+                    m_surfaceThreshold.setValue(Double.valueOf(m_volume.getSurfaceThreshold()));
+                }
                 m_admin.setMapper(mapper);
 
                 for (final Viewer3DNodeVolume v : m_rendered) {
                     v.setMapper(mapper);
                 }
+
+                // surfaces are actors instead of volumes
+                m_renderWindow.refreshVolumes();
             }
         });
 
@@ -485,14 +700,45 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
         mapWrapper.setBorder(BorderFactory.createTitledBorder("Mapper"));
         mapWrapper.add(m_listMapper);
 
+        // the threshold of the isosurfaces, the surfaces of the last few thresholds are kept by the volumes
+        m_surfaceThreshold = new JSpinner(new SpinnerNumberModel(0.0, null, null, 1.0));
+        m_surfaceThreshold.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent e) {
+                final double threshold = ((Number)m_surfaceThreshold.getValue()).doubleValue();
+                m_admin.setSurfaceThreshold(threshold);
+
+                for (final Viewer3DNodeVolume v : m_rendered) {
+                    v.setSurfaceThreshold(threshold);
+                }
+                repaintImage();
+            }
+        });
+
+        final JPanel thresholdWrapper = new JPanel();
+        thresholdWrapper.setBorder(BorderFactory.createTitledBorder("Isosurface Threshold"));
+        thresholdWrapper.add(m_surfaceThreshold);
+
         // put everything in the panel
         m_panelSettings = new JPanel();
         m_panelSettings.setLayout(new BoxLayout(m_panelSettings, BoxLayout.X_AXIS));
         m_panelSettings.add(mapWrapper);
+        m_panelSettings.add(thresholdWrapper);
 
         return m_panelSettings;
     }
 
+    /**
+     * Set whether the volumes are displayed while they are being loaded.<br>
+     * 
+     * If so, the volumes are shown right away and refreshed as more and more of their slices are filled in.
+     * 
+     * @param streaming whether to stream the volumes
+     */
+    public final void setStreaming(final boolean streaming) {
+        m_streaming = streaming;
+    }
+
     /**
      * Set the image admin to draw the images for rendering from.
      * 
@@ -526,6 +772,8 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
     }
 
     private synchronized void repaintImage() {
+        // the volumes may have switched their mode or started to share functions
+        m_renderWindow.updateTransferFunctions();
         m_renderWindow.render();
         m_sliceRenderer.render();
     }
@@ -570,6 +818,7 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
                 m_renderWindow = null;
                 m_listMapper.removeAll();
                 m_listMapper = null;
+                m_surfaceThreshold = null;
                 m_mainPanel.removeAll();
                 m_mainPanel = null;
                 m_panelNorth.removeAll();
@@ -622,10 +871,30 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
 
         getCurrentBundle();
 
-        applyTFToVolumes();
+        // rerendered once the transfer functions are updated
+        scheduleTransferFunctions();
+    }
 
-        // force rerender
-        repaintImage();
+    /**
+     * Update the transfer functions like {@link #applyTFToVolumes()}, but evaluate them in the background.
+     */
+    private void scheduleTransferFunctions() {
+        if (m_updating != null) {
+            m_updateAgain = true;
+            return;
+        }
+        m_updateAgain = false;
+
+        // with shared transfer functions, only the ones of m_volume need to be updated
+        shareTransferFunctions();
+
+        final List<Viewer3DNodeVolume.TransferFunctionUpdate> updates =
+                new ArrayList<Viewer3DNodeVolume.TransferFunctionUpdate>();
+        updates.add(m_volume.createTransferFunctionUpdate(m_mode == Mode.GRAY ? m_volume.getBundleGray() : m_volume
+                .getBundleRGB()));
+
+        m_updating = new UpdateTransferFunctions(updates);
+        m_updating.execute();
     }
 
     private void getCurrentBundle() {
@@ -643,31 +912,30 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
 
     /**
      * Apply the currently active TF in m_volumes to all rendered Volumes if force TF is active. Otherwise only the
-     * currently manipulated volume is updated.
+     * currently manipulated volume is updated.<br>
+     * 
+     * If force TF is active, the rendered volumes share the transfer functions of m_volume, so that only those have
+     * to be updated.
      */
     private void applyTFToVolumes() {
-        if (m_transferControl.isOnlyOneFunc()) {
-            if (m_mode == Mode.GRAY) {
-                final TransferFunctionBundle bundle = m_volume.getBundleGray();
-                for (final Viewer3DNodeVolume v : m_rendered) {
-                    if (v != m_volume) {
-                        v.setBundleGray(bundle);
-                    } else {
-                        updateVolume(v);
-                    }
-                }
-            } else {
-                final TransferFunctionBundle bundle = m_volume.getBundleRGB();
-                for (final Viewer3DNodeVolume v : m_rendered) {
-                    if (v != m_volume) {
-                        v.setBundleRGB(bundle);
-                    } else {
-                        updateVolume(v);
-                    }
-                }
-            }
+        shareTransferFunctions();
+        updateVolume(m_volume);
+    }
+
+    /**
+     * Let the rendered volumes use the transfer functions of m_volume if force TF is active, otherwise their own ones.
+     */
+    private void shareTransferFunctions() {
+        // m_volume need not be rendered, but its functions must be the ones of the current mode
+        if (m_mode == Mode.GRAY) {
+            m_volume.setGrayMode();
         } else {
-            updateVolume(m_volume);
+            m_volume.setRGBMode();
+        }
+
+        final Viewer3DNodeVolume source = m_transferControl.isOnlyOneFunc() ? m_volume : null;
+        for (final Viewer3DNodeVolume v : m_rendered) {
+            v.shareTransferFunctions(source);
         }
     }
 
@@ -689,13 +957,15 @@ public class Viewer3DNodeMain<T extends RealType<T>> extends ViewerComponent imp
     }
 
     private void setRenderVolume() {
-        // skip if we are loading an image already
-        if (m_loading == null) {
-            m_sliceControl.setEnabled(false);
-            m_loading = new LoadImages();
-            m_eventService.subscribe(m_loading);
-            m_loading.execute();
+        // the latest request wins, abort a load that is still running
+        final LoadImages previous = m_loading;
+        if (previous != null) {
+            previous.cancel(true);
         }
+
+        m_loading = new LoadImages(previous);
+        m_eventService.subscribe(m_loading);
+        m_loading.execute();
     }
 
     /**
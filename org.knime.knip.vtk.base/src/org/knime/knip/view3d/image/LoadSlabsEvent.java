@@ -0,0 +1,132 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import org.knime.knip.core.ui.event.KNIPEvent;
+
+/**
+ * This event indicates that some slices of a volume have been copied into its vtkImageData.<br>
+ *
+ * It is emitted while an image is being filled, so that the partly loaded image can already be displayed.
+ *
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+public final class LoadSlabsEvent implements KNIPEvent {
+
+    private final int m_start;
+
+    private final int m_end;
+
+    private final int m_depth;
+
+    /**
+     * Construct a new event for the slices [start, end) of a volume.
+     *
+     * @param start the first slice that has been loaded
+     * @param end the slice after the last one that has been loaded
+     * @param depth the number of slices of the volume
+     *
+     * @throws IllegalArgumentException if {@code start < 0 | end < start | depth < end}
+     */
+    public LoadSlabsEvent(final int start, final int end, final int depth) {
+        if ((start < 0) || (end < start) || (depth < end)) {
+            throw new IllegalArgumentException("Slices are not in bounds! 0 <= " + start + " <= " + end + " <= "
+                    + depth);
+        }
+        m_start = start;
+        m_end = end;
+        m_depth = depth;
+    }
+
+    /**
+     * Gets the first slice that has been loaded.
+     *
+     * @return The slice.
+     */
+    public int getStart() {
+        return m_start;
+    }
+
+    /**
+     * Gets the slice after the last one that has been loaded.
+     *
+     * @return The slice.
+     */
+    public int getEnd() {
+        return m_end;
+    }
+
+    /**
+     * Gets the number of slices of the volume.
+     *
+     * @return The depth.
+     */
+    public int getDepth() {
+        return m_depth;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ExecutionPriority getExecutionOrder() {
+        return ExecutionPriority.NORMAL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E extends KNIPEvent> boolean isRedundant(final E thatEvent) {
+        return false;
+    }
+}
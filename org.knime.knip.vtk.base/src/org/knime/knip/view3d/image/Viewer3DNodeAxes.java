@@ -49,6 +49,7 @@
 package org.knime.knip.view3d.image;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -66,6 +67,77 @@ import java.util.Map;
  */
 public class Viewer3DNodeAxes implements Iterable<Viewer3DNodeAxis> {
 
+    /**
+     * Identifies a volume by the indices of its displayed axes and the indices and depths of its hidden axes.<br>
+     * 
+     * Unlike the cache string, two different volumes never have the same key. The hash is computed once, so keys are
+     * cheap to look up in maps.
+     */
+    public static final class VolumeKey {
+
+        // the indices of the displayed axes, followed by index and depth of every hidden axis
+        private final int[] m_values;
+
+        private final int m_noDisplayed;
+
+        private final int m_hash;
+
+        private VolumeKey(final int[] values, final int noDisplayed) {
+            m_values = values;
+            m_noDisplayed = noDisplayed;
+            m_hash = (31 * Arrays.hashCode(values)) + noDisplayed;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof VolumeKey)) {
+                return false;
+            }
+            final VolumeKey other = (VolumeKey)obj;
+            return (m_hash == other.m_hash) && (m_noDisplayed == other.m_noDisplayed)
+                    && Arrays.equals(m_values, other.m_values);
+        }
+
+        /**
+         * Gets an unambiguous textual form of the key, e.g. "0,1,2|3=5" for the axes 0, 1 and 2 displayed and the
+         * axis 3 hidden at depth 5.
+         * 
+         * @return the key as string
+         */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < m_noDisplayed; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(m_values[i]);
+            }
+            sb.append('|');
+            for (int i = m_noDisplayed; i < m_values.length; i += 2) {
+                if (i > m_noDisplayed) {
+                    sb.append(',');
+                }
+                sb.append(m_values[i]).append('=').append(m_values[i + 1]);
+            }
+            return sb.toString();
+        }
+    }
+
     /**
      * This class represents all axial about one specific volume.
      */
@@ -76,7 +148,10 @@ public class Viewer3DNodeAxes implements Iterable<Viewer3DNodeAxis> {
 
         private final Map<Viewer3DNodeAxis, Integer> m_map;
 
-        private Volume(final List<Viewer3DNodeAxis> displayed, final List<Viewer3DNodeAxis> hidden, final int[] depths) {
+        private final VolumeKey m_key;
+
+        private Volume(final List<Viewer3DNodeAxis> displayed, final List<Viewer3DNodeAxis> hidden,
+                       final int[] depths) {
             m_displayed = displayed;
             m_hidden = hidden;
 
@@ -89,6 +164,17 @@ public class Viewer3DNodeAxes implements Iterable<Viewer3DNodeAxis> {
             for (final Viewer3DNodeAxis a : m_hidden) {
                 m_map.put(a, depths[a.getIndex()]);
             }
+
+            final int[] values = new int[m_displayed.size() + (2 * m_hidden.size())];
+            int i = 0;
+            for (final Viewer3DNodeAxis a : m_displayed) {
+                values[i++] = a.getIndex();
+            }
+            for (final Viewer3DNodeAxis a : m_hidden) {
+                values[i++] = a.getIndex();
+                values[i++] = depths[a.getIndex()];
+            }
+            m_key = new VolumeKey(values, m_displayed.size());
         }
 
         /**
@@ -99,6 +185,7 @@ public class Viewer3DNodeAxes implements Iterable<Viewer3DNodeAxis> {
         private Volume(final Volume vol) {
             m_displayed = copyList(vol.m_displayed);
             m_hidden = copyList(vol.m_hidden);
+            m_key = vol.m_key;
 
             m_map = new HashMap<Viewer3DNodeAxis, Integer>();
 
@@ -202,11 +289,22 @@ public class Viewer3DNodeAxes implements Iterable<Viewer3DNodeAxis> {
             return depths;
         }
 
+        /**
+         * Get the key that identifies this volume, e.g. for caching.
+         * 
+         * @return the key
+         */
+        public VolumeKey getKey() {
+            return m_key;
+        }
+
         /**
          * Get the actual string for caching for this Volume.<br>
          * 
          * @return the string for caching
+         * @deprecated different volumes may have the same string, use {@link #getKey()} instead
          */
+        @Deprecated
         public String getCacheString() {
 
             final StringBuilder sb = new StringBuilder();
@@ -368,16 +466,45 @@ public class Viewer3DNodeAxes implements Iterable<Viewer3DNodeAxis> {
      * @return the manipulated volume
      */
     public final Volume getManipulatedVolume() {
+        // by the index of the axes, the displayed ones start at 0
         final int[] depths = new int[m_axes.size()];
 
-        for (int i = 0; i < m_displayed.size(); i++) {
-            depths[i] = 0;
+        for (final Viewer3DNodeAxis a : m_hidden) {
+            depths[a.getIndex()] = a.getManipulated();
         }
 
-        for (int i = 0; i < m_hidden.size(); i++) {
-            depths[i + m_displayed.size()] = m_hidden.get(i).getManipulated();
+        return new Volume(m_displayed, m_hidden, depths);
+    }
+
+    /**
+     * Get the volume that the manipulated volume would be if one hidden axis were moved to another position.<br>
+     * 
+     * This can be used to look ahead of the user, e.g. to load the next time point.
+     * 
+     * @param axis the hidden axis to move
+     * @param position the position on that axis
+     * @return the volume at that position
+     * 
+     * @throws IllegalArgumentException if the axis is not hidden or the position is not within its extent
+     * @see #getManipulatedVolume()
+     */
+    public final Volume getManipulatedVolume(final Viewer3DNodeAxis axis, final int position) {
+        if (!m_hidden.contains(axis)) {
+            throw new IllegalArgumentException("The axis " + axis.getLabel() + " is currently not hidden!");
+        }
+        if ((position < 0) || (position >= axis.getExtent())) {
+            throw new IllegalArgumentException("The position " + Integer.toString(position)
+                    + " is not within the extent " + Integer.toString(axis.getExtent()));
         }
 
+        final int[] depths = new int[m_axes.size()];
+
+        // the positions of the manipulated volume, by the index of the axes
+        for (final Viewer3DNodeAxis a : m_hidden) {
+            depths[a.getIndex()] = a.getManipulated();
+        }
+        depths[axis.getIndex()] = position;
+
         return new Volume(m_displayed, m_hidden, depths);
     }
 
@@ -387,7 +514,9 @@ public class Viewer3DNodeAxes implements Iterable<Viewer3DNodeAxis> {
      * This is mainly thought to use the string as a hashvalue for caching the volumes.
      * 
      * @return a list of all volumes, coded in string form
+     * @deprecated different volumes may have the same string, use the keys of {@link #getDisplayedVolumes()} instead
      */
+    @Deprecated
     public final List<String> getCacheStrings() {
 
         final List<String> result = new LinkedList<String>();
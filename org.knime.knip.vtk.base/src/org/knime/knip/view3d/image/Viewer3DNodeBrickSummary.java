@@ -0,0 +1,477 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The smallest and the largest value of every brick of 16<sup>3</sup> voxels of an image, gathered while the image is
+ * filled. Large images use bricks of 32<sup>3</sup> voxels, so that the summary stays small.<br>
+ *
+ * The summary is a tiny fraction of the image, so it can be searched whenever the transfer functions change, e.g. for
+ * the bricks an opacity function leaves visible, or for bounds of the values in a region, without looking at the
+ * voxels again.
+ *
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+final class Viewer3DNodeBrickSummary {
+
+    // the edge length of the bricks is 1 << shift, 16 unless that makes too many bricks
+    private static final int MIN_SHIFT = 4;
+
+    private static final int MAX_SHIFT = 5;
+
+    private static final long MAX_BRICKS = 1 << 18;
+
+    /**
+     * Collects the summary of an image slice by slice, can be used from several threads at once.
+     */
+    static final class Builder {
+
+        private final Viewer3DNodeScalarType m_type;
+
+        private final int[] m_dims;
+
+        private final int m_shift;
+
+        private final int[] m_bricks;
+
+        private final float[] m_min;
+
+        private final float[] m_max;
+
+        /**
+         * Collect the summary of an image.
+         *
+         * @param type the scalar type of the image
+         * @param width the number of voxels along x
+         * @param height the number of voxels along y
+         * @param depth the number of voxels along z
+         */
+        Builder(final Viewer3DNodeScalarType type, final int width, final int height, final int depth) {
+            m_type = type;
+            m_dims = new int[]{width, height, depth};
+
+            int shift = MIN_SHIFT;
+            while ((shift < MAX_SHIFT) && (countBricks(m_dims, shift) > MAX_BRICKS)) {
+                shift++;
+            }
+            m_shift = shift;
+
+            m_bricks = new int[3];
+            for (int d = 0; d < 3; d++) {
+                m_bricks[d] = ((m_dims[d] - 1) >> m_shift) + 1;
+            }
+
+            final int numBricks = m_bricks[0] * m_bricks[1] * m_bricks[2];
+            m_min = new float[numBricks];
+            m_max = new float[numBricks];
+            Arrays.fill(m_min, Float.POSITIVE_INFINITY);
+            Arrays.fill(m_max, Float.NEGATIVE_INFINITY);
+        }
+
+        /**
+         * Add some complete slices of the image.
+         *
+         * @param data the java array holding the values, as created by the scalar type
+         * @param offset the index of the first value of the first slice
+         * @param zStart the first slice
+         * @param zEnd the slice after the last one
+         */
+        void add(final Object data, final int offset, final int zStart, final int zEnd) {
+            final int width = m_dims[0];
+            final int height = m_dims[1];
+
+            // one layer of bricks is collected at a time, so that the shared arrays are only locked once per layer
+            final int layer = m_bricks[0] * m_bricks[1];
+            final double[] min = new double[layer];
+            final double[] max = new double[layer];
+
+            int z = zStart;
+            while (z < zEnd) {
+                final int bz = z >> m_shift;
+                final int layerEnd = Math.min(zEnd, (bz + 1) << m_shift);
+
+                Arrays.fill(min, Double.POSITIVE_INFINITY);
+                Arrays.fill(max, Double.NEGATIVE_INFINITY);
+                for (; z < layerEnd; z++) {
+                    for (int y = 0; y < height; y++) {
+                        addRow(data, offset + ((((z - zStart) * height) + y) * width), (y >> m_shift) * m_bricks[0],
+                               min, max);
+                    }
+                }
+                merge(bz * layer, min, max);
+            }
+        }
+
+        private void addRow(final Object data, final int start, final int brick, final double[] min,
+                            final double[] max) {
+            final int width = m_dims[0];
+            switch (m_type) {
+                case UNSIGNED_CHAR:
+                    final byte[] bytes = (byte[])data;
+                    for (int x = 0; x < width; x++) {
+                        final int v = bytes[start + x] & 0xff;
+                        final int b = brick + (x >> m_shift);
+                        if (v < min[b]) {
+                            min[b] = v;
+                        }
+                        if (v > max[b]) {
+                            max[b] = v;
+                        }
+                    }
+                    break;
+                case SHORT:
+                    final short[] shorts = (short[])data;
+                    for (int x = 0; x < width; x++) {
+                        final int v = shorts[start + x];
+                        final int b = brick + (x >> m_shift);
+                        if (v < min[b]) {
+                            min[b] = v;
+                        }
+                        if (v > max[b]) {
+                            max[b] = v;
+                        }
+                    }
+                    break;
+                case UNSIGNED_SHORT:
+                    final short[] ushorts = (short[])data;
+                    for (int x = 0; x < width; x++) {
+                        final int v = ushorts[start + x] & 0xffff;
+                        final int b = brick + (x >> m_shift);
+                        if (v < min[b]) {
+                            min[b] = v;
+                        }
+                        if (v > max[b]) {
+                            max[b] = v;
+                        }
+                    }
+                    break;
+                default:
+                    // NaN fails both comparisons and is skipped, as it is never rendered
+                    final float[] floats = (float[])data;
+                    for (int x = 0; x < width; x++) {
+                        final float v = floats[start + x];
+                        final int b = brick + (x >> m_shift);
+                        if (v < min[b]) {
+                            min[b] = v;
+                        }
+                        if (v > max[b]) {
+                            max[b] = v;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        private synchronized void merge(final int offset, final double[] min, final double[] max) {
+            for (int i = 0; i < min.length; i++) {
+                m_min[offset + i] = (float)Math.min(m_min[offset + i], min[i]);
+                m_max[offset + i] = (float)Math.max(m_max[offset + i], max[i]);
+            }
+        }
+
+        /**
+         * Get the summary of everything that has been added so far. Bricks nothing has been added to count as empty.
+         *
+         * @return the summary
+         */
+        synchronized Viewer3DNodeBrickSummary finish() {
+            return new Viewer3DNodeBrickSummary(m_dims.clone(), m_shift, m_min.clone(), m_max.clone());
+        }
+    }
+
+    private final int[] m_dims;
+
+    private final int m_shift;
+
+    private final int[] m_bricks;
+
+    private final float[] m_min;
+
+    private final float[] m_max;
+
+    private Viewer3DNodeBrickSummary(final int[] dims, final int shift, final float[] min, final float[] max) {
+        m_dims = dims;
+        m_shift = shift;
+        m_bricks = new int[3];
+        for (int d = 0; d < 3; d++) {
+            m_bricks[d] = ((dims[d] - 1) >> shift) + 1;
+        }
+        m_min = min;
+        m_max = max;
+    }
+
+    private static long countBricks(final int[] dims, final int shift) {
+        long count = 1;
+        for (final int d : dims) {
+            count *= ((d - 1) >> shift) + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Read a summary written by {@link #write(DataOutput)}.
+     *
+     * @param in the input
+     * @return the summary
+     * @throws IOException if the input can not be read
+     */
+    static Viewer3DNodeBrickSummary read(final DataInput in) throws IOException {
+        final int[] dims = new int[3];
+        for (int d = 0; d < 3; d++) {
+            dims[d] = in.readInt();
+            if (dims[d] <= 0) {
+                throw new IOException("Invalid dimension: " + dims[d]);
+            }
+        }
+        final int shift = in.readInt();
+        if ((shift < MIN_SHIFT) || (shift > MAX_SHIFT)) {
+            throw new IOException("Invalid brick size: " + (1 << shift));
+        }
+
+        final int numBricks = (int)countBricks(dims, shift);
+        final float[] min = new float[numBricks];
+        final float[] max = new float[numBricks];
+        for (int i = 0; i < numBricks; i++) {
+            min[i] = in.readFloat();
+            max[i] = in.readFloat();
+        }
+        return new Viewer3DNodeBrickSummary(dims, shift, min, max);
+    }
+
+    /**
+     * Write this summary, so that it can be read by {@link #read(DataInput)}.
+     *
+     * @param out the output
+     * @throws IOException if the output can not be written
+     */
+    void write(final DataOutput out) throws IOException {
+        for (final int d : m_dims) {
+            out.writeInt(d);
+        }
+        out.writeInt(m_shift);
+        for (int i = 0; i < m_min.length; i++) {
+            out.writeFloat(m_min[i]);
+            out.writeFloat(m_max[i]);
+        }
+    }
+
+    /**
+     * Gets the dimensions of the summarized image.
+     *
+     * @return the number of voxels along x, y and z
+     */
+    int[] getDimensions() {
+        return m_dims.clone();
+    }
+
+    /**
+     * Gets the edge length of the bricks.
+     *
+     * @return the number of voxels along each axis of a brick, only the bricks at the far borders may be smaller
+     */
+    int getBrickSize() {
+        return 1 << m_shift;
+    }
+
+    /**
+     * Gets the number of bricks along each axis.
+     *
+     * @return the number of bricks along x, y and z
+     */
+    int[] getBrickCounts() {
+        return m_bricks.clone();
+    }
+
+    /**
+     * Find the bricks that hold a value an opacity function does not map to zero, i.e. that can show up when the
+     * image is rendered with that function. All other bricks can be skipped.<br>
+     *
+     * The function is evaluated like a vtkPiecewiseFunction: linear between its points and clamped beyond them.
+     *
+     * @param opacity the positions and opacities of the points of the function, alternating and ordered by position
+     * @return the visible bricks, brick (x, y, z) has the index x + (y + z * ny) * nx
+     */
+    BitSet getVisibleBricks(final double[] opacity) {
+        final double[] ranges = getVisibleRanges(opacity);
+        final BitSet result = new BitSet(m_min.length);
+        for (int b = 0; b < m_min.length; b++) {
+            if (isVisible(ranges, m_min[b], m_max[b])) {
+                result.set(b);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the bounding box of the bricks that hold a value an opacity function does not map to zero, i.e. of all
+     * voxels that can show up when the image is rendered with that function.<br>
+     *
+     * The function is evaluated like a vtkPiecewiseFunction: linear between its points and clamped beyond them. The
+     * box is grown by one voxel on each side, as the samples next to it are interpolated from the voxels inside.
+     *
+     * @param opacity the positions and opacities of the points of the function, alternating and ordered by position
+     * @return the extent of the box in voxels, xmin, xmax, ymin, ymax, zmin, zmax, or {@code null} if nothing is visible
+     */
+    int[] getVisibleExtent(final double[] opacity) {
+        final BitSet visible = getVisibleBricks(opacity);
+        if (visible.isEmpty()) {
+            return null;
+        }
+
+        final int[] lower = new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        final int[] upper = new int[]{-1, -1, -1};
+        for (int b = visible.nextSetBit(0); b >= 0; b = visible.nextSetBit(b + 1)) {
+            final int[] brick = new int[]{b % m_bricks[0], (b / m_bricks[0]) % m_bricks[1],
+                    b / (m_bricks[0] * m_bricks[1])};
+            for (int d = 0; d < 3; d++) {
+                lower[d] = Math.min(lower[d], brick[d]);
+                upper[d] = Math.max(upper[d], brick[d]);
+            }
+        }
+
+        final int[] extent = new int[6];
+        for (int d = 0; d < 3; d++) {
+            extent[2 * d] = Math.max(0, (lower[d] << m_shift) - 1);
+            extent[(2 * d) + 1] = Math.min(m_dims[d] - 1, ((upper[d] + 1) << m_shift));
+        }
+        return extent;
+    }
+
+    /**
+     * Get bounds of the values in a region of the image, from the bricks that overlap it. The true minimum and maximum
+     * of the region lie within these bounds, and are equal to them if the region consists of whole bricks. A region of
+     * a single voxel probes the range of its brick.
+     *
+     * @param extent the region in voxels, xmin, xmax, ymin, ymax, zmin, zmax, it is clipped to the image
+     * @return the lower and the upper bound, or {@code null} if the region does not overlap the image
+     */
+    double[] getRange(final int[] extent) {
+        final int[] lower = new int[3];
+        final int[] upper = new int[3];
+        for (int d = 0; d < 3; d++) {
+            final int from = Math.max(0, extent[2 * d]);
+            final int to = Math.min(m_dims[d] - 1, extent[(2 * d) + 1]);
+            if (from > to) {
+                return null;
+            }
+            lower[d] = from >> m_shift;
+            upper[d] = to >> m_shift;
+        }
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int bz = lower[2]; bz <= upper[2]; bz++) {
+            for (int by = lower[1]; by <= upper[1]; by++) {
+                final int row = (by + (bz * m_bricks[1])) * m_bricks[0];
+                for (int bx = lower[0]; bx <= upper[0]; bx++) {
+                    min = Math.min(min, m_min[row + bx]);
+                    max = Math.max(max, m_max[row + bx]);
+                }
+            }
+        }
+        return min <= max ? new double[]{min, max} : null;
+    }
+
+    /**
+     * The value ranges in which an opacity function is above zero, as closed intervals that are ordered and do not
+     * overlap, their bounds alternating. Around a point with an opacity above zero the function is, up to the
+     * neighboring points, or without end beyond the first and the last point.
+     */
+    private static double[] getVisibleRanges(final double[] opacity) {
+        final double[] ranges = new double[opacity.length];
+        int n = 0;
+
+        final int last = opacity.length - 2;
+        for (int i = 0; i <= last; i += 2) {
+            if (opacity[i + 1] > 0) {
+                final double from = i == 0 ? Double.NEGATIVE_INFINITY : opacity[i - 2];
+                final double to = i == last ? Double.POSITIVE_INFINITY : opacity[i + 2];
+                if ((n > 0) && (from <= ranges[n - 1])) {
+                    ranges[n - 1] = Math.max(ranges[n - 1], to);
+                } else {
+                    ranges[n++] = from;
+                    ranges[n++] = to;
+                }
+            }
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    /**
+     * Check whether [min, max] overlaps one of the ranges, by a binary search for the first range that does not end
+     * before min.
+     */
+    private static boolean isVisible(final double[] ranges, final double min, final double max) {
+        if (min > max) {
+            // nothing has been added to the brick
+            return false;
+        }
+
+        int low = 0;
+        int high = ranges.length / 2;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (ranges[(2 * mid) + 1] < min) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return (low < (ranges.length / 2)) && (ranges[2 * low] <= max);
+    }
+}
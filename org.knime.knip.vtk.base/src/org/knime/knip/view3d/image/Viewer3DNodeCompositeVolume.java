@@ -0,0 +1,241 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import vtk.vtkFixedPointVolumeRayCastMapper;
+import vtk.vtkImageAppendComponents;
+import vtk.vtkPlanes;
+import vtk.vtkVolume;
+import vtk.vtkVolumeProperty;
+
+/**
+ * Renders up to four volumes of the same size as the components of a single image, each with its own transfer
+ * functions.<br>
+ * 
+ * Overlapping volumes, e.g. the channels of an image, are composited in one ray cast pass this way, instead of one pass
+ * per volume. The components are copied into a new image, so this takes as much memory again as the volumes.
+ * 
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+public class Viewer3DNodeCompositeVolume {
+
+    /**
+     * The maximum number of volumes that can be combined, as vtk supports at most four independent components.
+     */
+    public static final int MAX_COMPONENTS = 4;
+
+    private final List<Viewer3DNodeVolume> m_volumes;
+
+    private final vtkImageAppendComponents m_append;
+
+    // the only mapper that supports more than one independent component
+    private final vtkFixedPointVolumeRayCastMapper m_mapper;
+
+    private final vtkVolumeProperty m_property;
+
+    private final vtkVolume m_volume;
+
+    /**
+     * Combine some volumes.
+     * 
+     * @param volumes the volumes, see {@link #canCombine(List)}
+     */
+    public Viewer3DNodeCompositeVolume(final List<Viewer3DNodeVolume> volumes) {
+        if (!canCombine(volumes)) {
+            throw new IllegalArgumentException("The volumes can not be combined!");
+        }
+        m_volumes = new ArrayList<Viewer3DNodeVolume>(volumes);
+
+        // the outputs switch to the coarse images during an interaction, so does the combined image
+        m_append = new vtkImageAppendComponents();
+        for (final Viewer3DNodeVolume v : m_volumes) {
+            m_append.AddInputConnection(v.getRenderOutput());
+        }
+
+        m_mapper = new vtkFixedPointVolumeRayCastMapper();
+        m_mapper.SetInputConnection(m_append.GetOutputPort());
+        m_mapper.AutoAdjustSampleDistancesOff();
+
+        m_property = new vtkVolumeProperty();
+        m_property.IndependentComponentsOn();
+
+        m_volume = new vtkVolume();
+        m_volume.SetMapper(m_mapper);
+        m_volume.SetProperty(m_property);
+
+        updateTransferFunctions();
+        updateSampleDistances();
+    }
+
+    /**
+     * Check whether some volumes can be combined, that is whether there are at least two and at most
+     * {@link #MAX_COMPONENTS} of them, all of the same extent and scalar type.
+     * 
+     * @param volumes the volumes
+     * @return true if they can be combined
+     */
+    public static boolean canCombine(final List<Viewer3DNodeVolume> volumes) {
+        if ((volumes.size() < 2) || (volumes.size() > MAX_COMPONENTS)) {
+            return false;
+        }
+
+        final Viewer3DNodeVolume first = volumes.get(0);
+        for (final Viewer3DNodeVolume v : volumes) {
+            if (v.isSurface() || ((v != first) && !first.hasSameLayout(v))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Use the transfer functions the volumes are currently rendered with for their components, and crop to what any
+     * of them leaves visible. Call this after the mode of the volumes has changed.
+     */
+    public final void updateTransferFunctions() {
+        for (int i = 0; i < m_volumes.size(); i++) {
+            final Viewer3DNodeVolume v = m_volumes.get(i);
+            m_property.SetColor(i, v.getColorFunction());
+            m_property.SetScalarOpacity(i, v.getOpacityFunction());
+        }
+
+        // the union of the regions of the volumes, a volume that is not cropped at all covers everything
+        double[] cropping = null;
+        for (final Viewer3DNodeVolume v : m_volumes) {
+            final double[] c = v.getCropping();
+            if (c == null) {
+                cropping = null;
+                break;
+            }
+            if (cropping == null) {
+                cropping = c;
+            } else {
+                for (int d = 0; d < 3; d++) {
+                    cropping[2 * d] = Math.min(cropping[2 * d], c[2 * d]);
+                    cropping[(2 * d) + 1] = Math.max(cropping[(2 * d) + 1], c[(2 * d) + 1]);
+                }
+            }
+        }
+
+        if (cropping == null) {
+            m_mapper.CroppingOff();
+        } else {
+            m_mapper.SetCroppingRegionPlanes(cropping);
+            m_mapper.SetCroppingRegionFlagsToSubVolume();
+            m_mapper.CroppingOn();
+        }
+    }
+
+    /**
+     * Set the clipping planes to use.
+     * 
+     * @param planes the planes
+     */
+    public final void setClippingPlanes(final vtkPlanes planes) {
+        m_mapper.SetClippingPlanes(planes);
+    }
+
+    /**
+     * Thin out the samples of the volumes and of the combined image to render faster.
+     * 
+     * @param factor the factor, 1 for full quality
+     * @see Viewer3DNodeVolume#setSampleDistanceFactor(double)
+     */
+    public final void setSampleDistanceFactor(final double factor) {
+        for (final Viewer3DNodeVolume v : m_volumes) {
+            v.setSampleDistanceFactor(factor);
+        }
+        updateSampleDistances();
+    }
+
+    /**
+     * Sample the combined image as the volumes sample theirs, they all have the same layout. Call this after the
+     * volumes switched to or from their interaction images.
+     */
+    public final void updateSampleDistances() {
+        final Viewer3DNodeVolume first = m_volumes.get(0);
+        m_mapper.SetSampleDistance(first.getSampleDistance());
+        m_mapper.SetImageSampleDistance(first.getImageSampleDistance());
+    }
+
+    /**
+     * Gets the combined volume.
+     * 
+     * @return the volume
+     */
+    public final vtkVolume getVolume() {
+        return m_volume;
+    }
+
+    /**
+     * Gets the volumes that are combined, in the order of the components.
+     * 
+     * @return the volumes
+     */
+    public final List<Viewer3DNodeVolume> getVolumes() {
+        return Collections.unmodifiableList(m_volumes);
+    }
+
+    /**
+     * Free the combined image. The volumes themselves are not deleted.
+     */
+    public final void delete() {
+        m_volume.Delete();
+        m_property.Delete();
+        m_mapper.Delete();
+        m_append.Delete();
+    }
+}
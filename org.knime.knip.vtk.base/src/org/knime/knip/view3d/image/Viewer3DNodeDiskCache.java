@@ -0,0 +1,504 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.osgi.service.datalocation.Location;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * A cache of converted volumes on disk, so that a volume that has been viewed before does not have to be converted
+ * again, not even after a restart.<br>
+ *
+ * Every entry consists of two files: the converted voxels, in the native byte order, and the statistics of the
+ * voxels together with a description of what has been converted. The voxels are read back through memory mapped
+ * files. An entry only counts once both files are complete, so a crash during writing leaves no broken entries.<br>
+ *
+ * If the files take more space than the budget, the entries that have not been read for the longest time are deleted.
+ *
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+public class Viewer3DNodeDiskCache {
+
+    /**
+     * The default budget, 8 GiB.
+     */
+    public static final long DEFAULT_BUDGET = 8L << 30;
+
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(Viewer3DNodeDiskCache.class);
+
+    // raised whenever the format of the statistics changes, so that older entries are converted again
+    private static final int VERSION = 2;
+
+    private static final String VOXELS = ".raw";
+
+    private static final String STATISTICS = ".stats";
+
+    private static final String PARTIAL = ".part";
+
+    // files without an entry that have not been written to for this long are left behind by an interrupted write
+    private static final long ORPHAN_MILLIS = 60L * 60L * 1000L;
+
+    private static Viewer3DNodeDiskCache defaultCache = null;
+
+    private final File m_directory;
+
+    private long m_budget;
+
+    /**
+     * Get the cache in the metadata of the KNIME workspace, or in the temporary directory if there is no workspace.
+     *
+     * @return the default cache
+     */
+    public static synchronized Viewer3DNodeDiskCache getDefault() {
+        if (defaultCache == null) {
+            File base = null;
+            try {
+                final Location workspace = Platform.getInstanceLocation();
+                final URL url = workspace != null ? workspace.getURL() : null;
+                if (url != null) {
+                    base = new File(new File(url.getFile(), ".metadata"), ".plugins");
+                }
+            } catch (final RuntimeException e) {
+                // not running in eclipse
+                base = null;
+            }
+            if (base == null) {
+                base = new File(System.getProperty("java.io.tmpdir"));
+            }
+
+            defaultCache = new Viewer3DNodeDiskCache(new File(base, "org.knime.knip.vtk.base" + File.separator
+                    + "volumes"), DEFAULT_BUDGET);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Set up a cache.
+     *
+     * @param directory the directory to keep the files in, it is created if necessary
+     * @param budget the number of bytes the files may take
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public Viewer3DNodeDiskCache(final File directory, final long budget) {
+        m_directory = directory;
+        setBudget(budget);
+    }
+
+    /**
+     * Set the number of bytes the files may take.
+     *
+     * @param budget the budget in bytes
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public final synchronized void setBudget(final long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("The budget must not be negative!");
+        }
+        m_budget = budget;
+    }
+
+    /**
+     * Gets the number of bytes the files may take.
+     *
+     * @return the budget in bytes
+     */
+    public final synchronized long getBudget() {
+        return m_budget;
+    }
+
+    /**
+     * Gets the directory the files are kept in.
+     *
+     * @return the directory
+     */
+    public final File getDirectory() {
+        return m_directory;
+    }
+
+    /**
+     * The name of the files of an entry, from the hash of the image and a hash of the description.
+     */
+    private static String getName(final long contentHash, final String description) {
+        // FNV-1a, the description itself is checked when the entry is read
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < description.length(); i++) {
+            hash = (hash ^ description.charAt(i)) * 0x100000001b3L;
+        }
+        return Long.toHexString(contentHash) + "-" + Long.toHexString(hash);
+    }
+
+    /**
+     * Open an entry for reading.
+     *
+     * @param contentHash the hash of the values of the image
+     * @param description what has been converted, e.g. the volume, the scalar type and the conversion settings
+     * @param type the scalar type of the voxels
+     * @param voxels the number of voxels
+     * @return the entry, or {@code null} if there is no complete entry that matches
+     */
+    Reader open(final long contentHash, final String description, final Viewer3DNodeScalarType type,
+                final long voxels) {
+        final String name = getName(contentHash, description);
+        final File statistics = new File(m_directory, name + STATISTICS);
+        final File data = new File(m_directory, name + VOXELS);
+        if (!statistics.isFile() || !data.isFile() || (data.length() != (voxels * type.getSize()))) {
+            return null;
+        }
+
+        try {
+            final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(statistics)));
+            final Viewer3DNodeImageStatistics stats;
+            try {
+                if ((in.readInt() != VERSION) || !in.readUTF().equals(description)
+                        || !in.readUTF().equals(ByteOrder.nativeOrder().toString())) {
+                    return null;
+                }
+                stats = Viewer3DNodeImageStatistics.read(in);
+            } finally {
+                in.close();
+            }
+
+            // mark the entry as used
+            statistics.setLastModified(System.currentTimeMillis());
+
+            return new Reader(new RandomAccessFile(data, "r"), type, stats);
+        } catch (final IOException e) {
+            LOGGER.debug("Could not read the cached volume " + name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Create an entry. It can only be read once it has been finished.
+     *
+     * @param contentHash the hash of the values of the image
+     * @param description what has been converted, e.g. the volume, the scalar type and the conversion settings
+     * @param type the scalar type of the voxels
+     * @return the entry, or {@code null} if it can not be created
+     */
+    Writer create(final long contentHash, final String description, final Viewer3DNodeScalarType type) {
+        final String name = getName(contentHash, description);
+        if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+            LOGGER.debug("Could not create the volume cache in " + m_directory);
+            return null;
+        }
+
+        try {
+            return new Writer(name, description, type);
+        } catch (final IOException e) {
+            LOGGER.debug("Could not write the cached volume " + name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the entries that have not been read for the longest time, until the files fit into the budget. Files
+     * left behind by interrupted writes are deleted first.
+     */
+    private synchronized void trim() {
+        final File[] files = m_directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final long orphaned = System.currentTimeMillis() - ORPHAN_MILLIS;
+        final List<File> entries = new ArrayList<File>();
+        long size = 0;
+        for (final File f : files) {
+            final String name = f.getName();
+            if (name.endsWith(STATISTICS)) {
+                entries.add(f);
+                size += f.length() + dataOf(f).length();
+            } else if (name.endsWith(PARTIAL) || (name.endsWith(VOXELS) && !statisticsOf(f).isFile())) {
+                // may still be written to, by this or another process
+                if ((f.lastModified() > orphaned) || !f.delete()) {
+                    size += f.length();
+                }
+            }
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                final long ta = a.lastModified();
+                final long tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; (i < entries.size()) && (size > m_budget); i++) {
+            final File statistics = entries.get(i);
+            final File data = dataOf(statistics);
+            final long length = statistics.length() + data.length();
+
+            // the statistics first, so that the entry is gone even if the voxels are still being read
+            if (statistics.delete()) {
+                data.delete();
+                size -= length;
+            }
+        }
+    }
+
+    private static File statisticsOf(final File data) {
+        final String name = data.getName();
+        return new File(data.getParentFile(), name.substring(0, name.length() - VOXELS.length()) + STATISTICS);
+    }
+
+    private static File dataOf(final File statistics) {
+        final String name = statistics.getName();
+        return new File(statistics.getParentFile(), name.substring(0, name.length() - STATISTICS.length()) + VOXELS);
+    }
+
+    /**
+     * Reads the voxels of an entry in consecutive pieces.
+     */
+    final class Reader {
+
+        private final RandomAccessFile m_file;
+
+        private final Viewer3DNodeScalarType m_type;
+
+        private final Viewer3DNodeImageStatistics m_statistics;
+
+        private long m_position = 0;
+
+        // reused for all pieces, they have the same size but the last
+        private ByteBuffer m_buffer = null;
+
+        private Reader(final RandomAccessFile file, final Viewer3DNodeScalarType type,
+                       final Viewer3DNodeImageStatistics statistics) {
+            m_file = file;
+            m_type = type;
+            m_statistics = statistics;
+        }
+
+        /**
+         * Gets the statistics of the voxels.
+         *
+         * @return the statistics
+         */
+        Viewer3DNodeImageStatistics getStatistics() {
+            return m_statistics;
+        }
+
+        /**
+         * Read the next voxels.
+         *
+         * @param data a java array created by the scalar type
+         * @param length the number of voxels to read into the start of the array
+         * @throws IOException if the file can not be read
+         */
+        void read(final Object data, final int length) throws IOException {
+            final int bytes = length * m_type.getSize();
+            if ((m_buffer == null) || (m_buffer.capacity() < bytes)) {
+                m_buffer = ByteBuffer.allocate(bytes);
+                m_buffer.order(ByteOrder.nativeOrder());
+            }
+            m_buffer.clear();
+            m_buffer.limit(bytes);
+
+            // read instead of mapped, a mapping is only released by the garbage collector and locks the file till then
+            final FileChannel channel = m_file.getChannel();
+            while (m_buffer.hasRemaining()) {
+                if (channel.read(m_buffer, m_position + m_buffer.position()) < 0) {
+                    throw new IOException("The cached volume ends early");
+                }
+            }
+            m_buffer.flip();
+
+            switch (m_type) {
+                case UNSIGNED_CHAR:
+                    m_buffer.get((byte[])data, 0, length);
+                    break;
+                case FLOAT:
+                    m_buffer.asFloatBuffer().get((float[])data, 0, length);
+                    break;
+                default:
+                    m_buffer.asShortBuffer().get((short[])data, 0, length);
+                    break;
+            }
+            m_position += bytes;
+        }
+
+        /**
+         * Close the entry.
+         */
+        void close() {
+            try {
+                m_file.close();
+            } catch (final IOException e) {
+                LOGGER.debug("Could not close a cached volume", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the voxels of an entry in consecutive pieces.
+     */
+    final class Writer {
+
+        private final String m_name;
+
+        private final String m_description;
+
+        private final Viewer3DNodeScalarType m_type;
+
+        private final File m_data;
+
+        private final FileOutputStream m_out;
+
+        private Writer(final String name, final String description, final Viewer3DNodeScalarType type)
+                                                                                                    throws IOException {
+            m_name = name;
+            m_description = description;
+            m_type = type;
+            // unique, so that two views converting the same volume at once do not write into the same file
+            m_data = File.createTempFile(name + VOXELS, PARTIAL, m_directory);
+            m_out = new FileOutputStream(m_data);
+        }
+
+        /**
+         * Append voxels.
+         *
+         * @param data a java array created by the scalar type
+         * @param length the number of voxels at the start of the array to write
+         * @throws IOException if the file can not be written
+         */
+        void write(final Object data, final int length) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(length * m_type.getSize());
+            buffer.order(ByteOrder.nativeOrder());
+            switch (m_type) {
+                case UNSIGNED_CHAR:
+                    buffer.put((byte[])data, 0, length);
+                    break;
+                case FLOAT:
+                    buffer.asFloatBuffer().put((float[])data, 0, length);
+                    break;
+                default:
+                    buffer.asShortBuffer().put((short[])data, 0, length);
+                    break;
+            }
+
+            final FileChannel channel = m_out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Complete the entry, so that it can be read.
+         *
+         * @param statistics the statistics of all written voxels
+         * @throws IOException if the files can not be written
+         */
+        void finish(final Viewer3DNodeImageStatistics statistics) throws IOException {
+            m_out.close();
+
+            final File partial = File.createTempFile(m_name + STATISTICS, PARTIAL, m_directory);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(m_description);
+                out.writeUTF(ByteOrder.nativeOrder().toString());
+                statistics.write(out);
+            } finally {
+                out.close();
+            }
+
+            // the statistics last, an entry without them is never read
+            final File data = new File(m_directory, m_name + VOXELS);
+            final File stats = new File(m_directory, m_name + STATISTICS);
+            data.delete();
+            stats.delete();
+            if (!m_data.renameTo(data) || !partial.renameTo(stats)) {
+                m_data.delete();
+                data.delete();
+                partial.delete();
+                throw new IOException("Could not complete the cached volume " + m_name);
+            }
+
+            trim();
+        }
+
+        /**
+         * Give up the entry and delete what has been written so far.
+         */
+        void abort() {
+            try {
+                m_out.close();
+            } catch (final IOException e) {
+                LOGGER.debug("Could not close a cached volume", e);
+            }
+            m_data.delete();
+        }
+    }
+}
@@ -48,9 +48,22 @@
  */
 package org.knime.knip.view3d.image;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import net.imagej.ImgPlus;
 import net.imagej.axis.CalibratedAxis;
@@ -79,16 +92,87 @@ import vtk.vtkImageData;
  */
 public class Viewer3DNodeImageAdmin<T extends RealType<T>> {
 
-    private LinkedHashMap<String, Viewer3DNodeVolume> m_cache;
+    // shared by all admins, so that several open views do not each start a thread per core
+    private static final ForkJoinPool CONVERSION_POOL = new ForkJoinPool();
+
+    // shared by all admins as well, a single thread that only runs while nothing else needs the cores
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "Viewer3D prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    // volumes with fewer voxels are loaded without a pyramid
+    private static final long PYRAMID_MIN_VOXELS = 1L << 21;
+
+    private Viewer3DNodeVolumeCache m_cache;
+
+    // the image the cached volumes belong to
+    private final ImgPlus<T> m_image;
+
+    private final Viewer3DNodeVolumeCache.Owner m_owner = new Viewer3DNodeVolumeCache.Owner() {
+        @Override
+        public void evicted(final Viewer3DNodeVolume volume) {
+            m_unfilled.remove(volume);
+            m_coarse.remove(volume);
+        }
+    };
+
+    // the volumes that could not be cached, as another view uses the cached ones
+    private final Map<Viewer3DNodeAxes.VolumeKey, Viewer3DNodeVolume> m_uncached =
+            new HashMap<Viewer3DNodeAxes.VolumeKey, Viewer3DNodeVolume>();
+
+    // the keys of the volumes the view displays, replaced as a whole on the event dispatch thread
+    private volatile Set<Viewer3DNodeAxes.VolumeKey> m_inUse = new HashSet<Viewer3DNodeAxes.VolumeKey>();
 
     private Viewer3DNodeVolume m_current = null;
 
+    // the volumes whose values have not been filled in yet
+    // concurrent, as the volumes may be evicted by other views
+    private final Map<Viewer3DNodeVolume, vtkImageData> m_unfilled =
+            new ConcurrentHashMap<Viewer3DNodeVolume, vtkImageData>();
+
+    // the volumes that only show a coarse level yet, with the factor the level is shrunk by
+    private final Map<Viewer3DNodeVolume, Integer> m_coarse = new ConcurrentHashMap<Viewer3DNodeVolume, Integer>();
+
+    private int m_pyramidLevels = 2;
+
     private Viewer3DNodeImageToVTK<T> m_converter;
 
+    // converts the prefetched volumes serially and without publishing any progress
+    private Viewer3DNodeImageToVTK<T> m_prefetchConverter;
+
+    // the prefetches that are scheduled or running, by the key of their volume
+    private final Map<Viewer3DNodeAxes.VolumeKey, Prefetch> m_prefetches =
+            new ConcurrentHashMap<Viewer3DNodeAxes.VolumeKey, Prefetch>();
+
+    private int m_prefetchDistance = 2;
+
+    // the hidden axis the user steps through and the direction of the last step
+    private Viewer3DNodeAxis m_prefetchAxis = null;
+
+    private int m_prefetchDirection = 1;
+
+    private final Map<Viewer3DNodeAxis, Integer> m_lastPositions = new HashMap<Viewer3DNodeAxis, Integer>();
+
+    // guards the cache against prefetches that finish after this instance has been deleted
+    private final Object m_prefetchLock = new Object();
+
+    private boolean m_deleted = false;
+
     private boolean m_caching;
 
     private Viewer3DNodeVolume.Mapper m_mapper;
 
+    // NaN for the default of each volume
+    private double m_surfaceThreshold = Double.NaN;
+
+    private boolean m_releaseUnusedMappers = false;
+
     private Viewer3DNodeAxes m_axes;
 
     private final EventService m_eventService;
@@ -113,12 +197,15 @@ public class Viewer3DNodeImageAdmin<T extends RealType<T>> {
 
         m_eventService = eventService;
 
-        m_cache = new LinkedHashMap<String, Viewer3DNodeVolume>();
+        m_cache = Viewer3DNodeVolumeCache.getInstance();
+        m_image = image;
         m_caching = true;
         m_mapper = Viewer3DNodeVolume.Mapper.SMART;
 
         // Set up the image converter
         m_converter = new Viewer3DNodeImageToVTK<T>(image, false, m_eventService);
+        m_converter.setForkJoinPool(CONVERSION_POOL);
+        m_prefetchConverter = new Viewer3DNodeImageToVTK<T>(image, false, new EventService());
 
         setUpAxes(image);
     }
@@ -151,52 +238,548 @@ public class Viewer3DNodeImageAdmin<T extends RealType<T>> {
      *
      * @param volume the volume to get
      * @return the corresponding volume
+     * @throws CancellationException if the calling thread is interrupted while the volume is converted
      */
     public final Viewer3DNodeVolume getVolume(final Viewer3DNodeAxes.Volume volume) {
+        return getVolume(volume, false);
+    }
+
+    /**
+     * Get the volume that corresponds to the given dimensions.<br>
+     *
+     * If the values of a new volume are not filled in right away, the volume is empty until
+     * {@link #fillVolume(Viewer3DNodeVolume)} is called. This way it can be displayed while it is being loaded.
+     *
+     * @param volume the volume to get
+     * @param deferFill whether to return new volumes without filling in their values
+     * @return the corresponding volume
+     * @throws CancellationException if the calling thread is interrupted while the volume is converted
+     */
+    public final Viewer3DNodeVolume getVolume(final Viewer3DNodeAxes.Volume volume, final boolean deferFill) {
 
         Viewer3DNodeVolume vol;
 
-        final String key = volume.getCacheString();
+        final Viewer3DNodeAxes.VolumeKey key = volume.getKey();
+
+        // the volume is needed right now, a running prefetch of it is waited for rather than repeated
+        final Prefetch prefetch = m_prefetches.get(key);
+        if (prefetch != null) {
+            join(prefetch);
+        }
+
+        Viewer3DNodeVolume cached = null;
+        if (m_caching) {
+            cached = m_cache.get(m_owner, m_image, key);
+            if (cached == null) {
+                cached = m_uncached.get(key);
+            }
+        }
+
+        if (cached != null) {
+            vol = cached;
 
-        if (m_caching && m_cache.containsKey(key)) {
-            vol = m_cache.get(key);
+            // an earlier load may have been cancelled before it was filled
+            if (!deferFill && fillVolume(vol)) {
+                vol.updateValues();
+            }
         } else {
             // create the new volume
-            final vtkImageData vtkImg = m_converter.getVTKImageData(volume);
-
-            // copy the current settings if possible
-            if (m_current != null) {
-                final TransferFunctionBundle gray = new TransferFunctionBundle(m_current.getBundleGray());
-                final TransferFunctionBundle rgb = new TransferFunctionBundle(m_current.getBundleRGB());
-                vol = new Viewer3DNodeVolume(vtkImg, volume, gray, rgb);
+            final int shrink = deferFill ? getPyramidShrink(volume) : 1;
+            final vtkImageData vtkImg;
+            if (shrink > 1) {
+                // start with the coarsest level, the finer ones are swapped in by fillVolume
+                vtkImg = m_converter.createVTKImageData(volume, shrink);
+                try {
+                    m_converter.fillVTKImageData(vtkImg, volume, shrink);
+                } catch (final CancellationException e) {
+                    vtkImg.Delete();
+                    throw e;
+                }
+            } else if (deferFill) {
+                vtkImg = m_converter.createVTKImageData(volume);
             } else {
-                vol = new Viewer3DNodeVolume(vtkImg, volume);
+                vtkImg = m_converter.getVTKImageData(volume);
+            }
+
+            vol = newVolume(volume, vtkImg);
+
+            if (shrink > 1) {
+                m_coarse.put(vol, Integer.valueOf(shrink));
+            } else if (deferFill) {
+                m_unfilled.put(vol, vtkImg);
             }
 
             if (m_caching) {
-                m_cache.put(key, vol);
+                cache(key, vol);
+
+                final Set<Viewer3DNodeAxes.VolumeKey> keep = getDisplayedKeys();
+                keep.addAll(m_inUse);
+                keep.add(key);
+                trimCache(keep);
             }
         }
 
         m_current = vol;
+        vol.setReleaseUnusedMappers(m_releaseUnusedMappers);
+        vol.setSurfaceThreshold(m_surfaceThreshold);
         vol.setMapper(m_mapper);
         return vol;
     }
 
+    /**
+     * Wait for a running prefetch, afterwards its volume is cached if it fit into the budget. A prefetch that has not
+     * started yet is cancelled, loading the volume right away is faster than waiting for the prefetch thread.
+     *
+     * @throws CancellationException if the calling thread is interrupted while waiting
+     */
+    private void join(final Prefetch prefetch) {
+        if (!prefetch.isStarted()) {
+            prefetch.cancel(true);
+            return;
+        }
+
+        try {
+            prefetch.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        } catch (final ExecutionException e) {
+            // loaded again by the caller, which reports the failure
+        } catch (final CancellationException e) {
+            // cancelled meanwhile, loaded by the caller
+        }
+    }
+
     /**
      * Get all currently displayed volumes as listed by the owned axes instance of this instance.
      *
      * @return a list of all volumes
      */
     public final List<Viewer3DNodeVolume> getVolumes() {
+        return getVolumes(false);
+    }
+
+    /**
+     * Get all currently displayed volumes as listed by the owned axes instance of this instance.
+     *
+     * @param deferFill whether to return new volumes without filling in their values
+     * @return a list of all volumes
+     * @see #getVolume(Viewer3DNodeAxes.Volume, boolean)
+     */
+    public final List<Viewer3DNodeVolume> getVolumes(final boolean deferFill) {
+        final List<Viewer3DNodeAxes.Volume> displayed = m_axes.getDisplayedVolumes();
+
+        if (!deferFill && m_caching) {
+            // convert all volumes that are missing in one sweep
+            final List<Viewer3DNodeAxes.Volume> missing = new LinkedList<Viewer3DNodeAxes.Volume>();
+            for (final Viewer3DNodeAxes.Volume v : displayed) {
+                if (!m_cache.contains(m_owner, m_image, v.getKey())
+                        && !m_uncached.containsKey(v.getKey())) {
+                    missing.add(v);
+                }
+            }
+
+            if (missing.size() > 1) {
+                final List<vtkImageData> images = m_converter.getVTKImageData(missing);
+                for (int i = 0; i < images.size(); i++) {
+                    m_current = newVolume(missing.get(i), images.get(i));
+                    cache(missing.get(i).getKey(), m_current);
+                }
+
+                final Set<Viewer3DNodeAxes.VolumeKey> keep = getDisplayedKeys();
+                keep.addAll(m_inUse);
+                trimCache(keep);
+            }
+        }
+
         final List<Viewer3DNodeVolume> volumes = new LinkedList<Viewer3DNodeVolume>();
-        for (final Viewer3DNodeAxes.Volume v : m_axes.getDisplayedVolumes()) {
-            volumes.add(getVolume(v));
+        for (final Viewer3DNodeAxes.Volume v : displayed) {
+            volumes.add(getVolume(v, deferFill));
         }
 
+        // the volumes shown before stay in use until the view displays these, see setDisplayedVolumes
         return volumes;
     }
 
+    /**
+     * Tell which volumes the view displays now, e.g. after handing the result of {@link #getVolumes(boolean)} to the
+     * renderer. Until then the volumes displayed before are kept in the cache, as they may still be rendered.
+     *
+     * @param volumes the displayed volumes
+     */
+    public final void setDisplayedVolumes(final List<Viewer3DNodeVolume> volumes) {
+        final Set<Viewer3DNodeAxes.VolumeKey> keys = new HashSet<Viewer3DNodeAxes.VolumeKey>();
+        for (final Viewer3DNodeVolume v : volumes) {
+            keys.add(v.getAxesVolume().getKey());
+        }
+        m_inUse = keys;
+    }
+
+    private Set<Viewer3DNodeAxes.VolumeKey> getDisplayedKeys() {
+        final Set<Viewer3DNodeAxes.VolumeKey> keys = new HashSet<Viewer3DNodeAxes.VolumeKey>();
+        for (final Viewer3DNodeAxes.Volume v : m_axes.getDisplayedVolumes()) {
+            keys.add(v.getKey());
+        }
+        return keys;
+    }
+
+    private void cache(final Viewer3DNodeAxes.VolumeKey key, final Viewer3DNodeVolume volume) {
+        if (!m_cache.put(m_owner, m_image, key, volume)) {
+            // another view of the same image uses the cached volume, this one is kept apart until it is deleted
+            final Viewer3DNodeVolume old = m_uncached.put(key, volume);
+            if ((old != null) && (old != volume)) {
+                old.delete(false);
+            }
+        }
+    }
+
+    /**
+     * Bring the cache back into its budget, keeping the given volumes and the current one.
+     */
+    private void trimCache(final Set<Viewer3DNodeAxes.VolumeKey> keep) {
+        if (m_current != null) {
+            keep.add(m_current.getAxesVolume().getKey());
+        }
+        m_cache.trim(m_owner, m_image, keep);
+    }
+
+    /**
+     * Load the volumes next to the manipulated volume in the background, so that stepping through a hidden axis does
+     * not wait for the conversion.<br>
+     *
+     * The volumes at up to the prefetch distance on the axis the user stepped through last are loaded, the ones in
+     * the direction of the last step first. They are only kept if they fit into the cache budget. Prefetches of
+     * volumes that are no longer next to or at the manipulated volume are cancelled.<br>
+     *
+     * Call this once the displayed volumes are loaded.
+     */
+    public final void prefetch() {
+        final Viewer3DNodeAxis axis = findSteppedAxis();
+        if (!m_caching || (m_prefetchDistance == 0) || (m_current == null) || (axis == null)) {
+            cancelPrefetches(Collections.<Viewer3DNodeAxes.VolumeKey> emptySet());
+            return;
+        }
+
+        final int position = axis.getManipulated();
+        final List<Viewer3DNodeAxes.Volume> wanted = new ArrayList<Viewer3DNodeAxes.Volume>();
+        for (int d = 1; d <= m_prefetchDistance; d++) {
+            for (final int p : new int[]{position + (d * m_prefetchDirection), position - (d * m_prefetchDirection)}) {
+                if ((p >= 0) && (p < axis.getExtent())) {
+                    wanted.add(m_axes.getManipulatedVolume(axis, p));
+                }
+            }
+        }
+
+        final Set<Viewer3DNodeAxes.VolumeKey> keys = new HashSet<Viewer3DNodeAxes.VolumeKey>();
+        keys.add(m_axes.getManipulatedVolume().getKey());
+        for (final Viewer3DNodeAxes.Volume v : wanted) {
+            keys.add(v.getKey());
+        }
+        cancelPrefetches(keys);
+
+        for (final Viewer3DNodeAxes.Volume v : wanted) {
+            schedulePrefetch(v);
+        }
+    }
+
+    /**
+     * Load the manipulated volume in the background, e.g. for an image that is likely to be shown next.<br>
+     *
+     * Like the prefetched neighbours, the volume is only kept if it fits into the cache budget.
+     *
+     * @see #prefetch()
+     */
+    public final void preload() {
+        if (m_caching) {
+            schedulePrefetch(m_axes.getManipulatedVolume());
+        }
+    }
+
+    private void schedulePrefetch(final Viewer3DNodeAxes.Volume volume) {
+        final Viewer3DNodeAxes.VolumeKey key = volume.getKey();
+        if (!m_cache.contains(m_owner, m_image, key) && !m_uncached.containsKey(key)
+                && !m_prefetches.containsKey(key)) {
+            final Prefetch task = new Prefetch(volume);
+            m_prefetches.put(key, task);
+            PREFETCH_EXECUTOR.execute(task);
+        }
+    }
+
+    /**
+     * The hidden axis whose position changed since the last call, or the one stepped through before.
+     */
+    private Viewer3DNodeAxis findSteppedAxis() {
+        Viewer3DNodeAxis stepped = null;
+        for (final Viewer3DNodeAxis a : m_axes.getHidden()) {
+            final Integer last = m_lastPositions.put(a, Integer.valueOf(a.getManipulated()));
+            if ((last != null) && (last.intValue() != a.getManipulated())) {
+                stepped = a;
+                m_prefetchDirection = a.getManipulated() > last.intValue() ? 1 : -1;
+            }
+        }
+
+        if (stepped != null) {
+            m_prefetchAxis = stepped;
+        } else if ((m_prefetchAxis == null) || !m_axes.isHidden(m_prefetchAxis)) {
+            // nothing has been stepped through yet, guess the last axis with several positions, usually the time
+            m_prefetchAxis = null;
+            for (final Viewer3DNodeAxis a : m_axes.getHidden()) {
+                if (a.getExtent() > 1) {
+                    m_prefetchAxis = a;
+                }
+            }
+            m_prefetchDirection = 1;
+        }
+
+        return m_prefetchAxis;
+    }
+
+    private void cancelPrefetches(final Set<Viewer3DNodeAxes.VolumeKey> keep) {
+        for (final Map.Entry<Viewer3DNodeAxes.VolumeKey, Prefetch> e : m_prefetches.entrySet()) {
+            if (!keep.contains(e.getKey())) {
+                e.getValue().cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Loads one volume on the prefetch thread and offers it to the cache.
+     */
+    private final class Prefetch extends FutureTask<Void> {
+
+        private final Viewer3DNodeAxes.VolumeKey m_key;
+
+        private volatile boolean m_started = false;
+
+        private Prefetch(final Viewer3DNodeAxes.Volume volume) {
+            super(new PrefetchLoader(volume, m_prefetchConverter, m_cache, m_current), null);
+            m_key = volume.getKey();
+        }
+
+        @Override
+        public void run() {
+            m_started = true;
+            super.run();
+        }
+
+        private boolean isStarted() {
+            return m_started;
+        }
+
+        @Override
+        protected void done() {
+            m_prefetches.remove(m_key);
+        }
+    }
+
+    private final class PrefetchLoader implements Runnable {
+
+        private final Viewer3DNodeAxes.Volume m_volume;
+
+        private final Viewer3DNodeImageToVTK<T> m_loader;
+
+        private final Viewer3DNodeVolumeCache m_target;
+
+        private final TransferFunctionBundle m_gray;
+
+        private final TransferFunctionBundle m_rgb;
+
+        private final long m_estimate;
+
+        private PrefetchLoader(final Viewer3DNodeAxes.Volume volume, final Viewer3DNodeImageToVTK<T> converter,
+                               final Viewer3DNodeVolumeCache cache, final Viewer3DNodeVolume template) {
+            m_volume = volume;
+            m_loader = converter;
+            m_target = cache;
+
+            if (template != null) {
+                // the settings are copied now, while they are not being edited
+                m_gray = new TransferFunctionBundle(template.getBundleGray());
+                m_rgb = new TransferFunctionBundle(template.getBundleRGB());
+
+                // the neighbours have the same size as the current volume
+                m_estimate = template.getMemorySize();
+            } else {
+                m_gray = TransferFunctionBundle.newGABundle();
+                m_rgb = TransferFunctionBundle.newRGBABundle();
+                m_estimate = 0;
+            }
+        }
+
+        @Override
+        public void run() {
+            if ((m_target.getSize() + m_estimate) > m_target.getBudget()) {
+                // only load ahead what can be kept without evicting anything
+                return;
+            }
+
+            // throws a CancellationException if the prefetch is cancelled meanwhile
+            final vtkImageData vtkImg = m_loader.getVTKImageData(m_volume);
+            final Viewer3DNodeVolume vol =
+                    new Viewer3DNodeVolume(vtkImg, m_volume, m_gray, m_rgb, m_loader.getStatistics(vtkImg));
+
+            synchronized (m_prefetchLock) {
+                if (m_deleted || Thread.currentThread().isInterrupted()
+                        || !m_target.offer(m_owner, m_image, m_volume.getKey(), vol)) {
+                    vol.delete(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap an image into a new volume, copying the current settings if possible.
+     */
+    private Viewer3DNodeVolume newVolume(final Viewer3DNodeAxes.Volume volume, final vtkImageData vtkImg) {
+        if (m_current != null) {
+            final TransferFunctionBundle gray = new TransferFunctionBundle(m_current.getBundleGray());
+            final TransferFunctionBundle rgb = new TransferFunctionBundle(m_current.getBundleRGB());
+            return new Viewer3DNodeVolume(vtkImg, volume, gray, rgb, m_converter.getStatistics(vtkImg));
+        } else {
+            return new Viewer3DNodeVolume(vtkImg, volume, TransferFunctionBundle.newGABundle(),
+                    TransferFunctionBundle.newRGBABundle(), m_converter.getStatistics(vtkImg));
+        }
+    }
+
+    /**
+     * Fill in the values of a volume that has been returned without them.<br>
+     *
+     * A {@link LoadSlabsEvent} is published whenever another part of the volume has been filled in.
+     *
+     * @param volume the volume to fill
+     * @return whether the volume had to be filled
+     * @throws CancellationException if the calling thread is interrupted, the volume can be filled again later
+     */
+    public final boolean fillVolume(final Viewer3DNodeVolume volume) {
+        return !fillVolumes(Collections.singletonList(volume)).isEmpty();
+    }
+
+    /**
+     * Fill in the values of several volumes that have been returned without them.<br>
+     *
+     * The volumes are converted together in one sweep, level by level for volumes that are loaded through a
+     * pyramid.
+     *
+     * @param volumes the volumes to fill, they must all display the same axes
+     * @return the volumes that had to be filled
+     * @throws CancellationException if the calling thread is interrupted, the volumes can be filled again later
+     * @see #fillVolume(Viewer3DNodeVolume)
+     */
+    public final List<Viewer3DNodeVolume> fillVolumes(final List<Viewer3DNodeVolume> volumes) {
+        final List<Viewer3DNodeVolume> filled = new LinkedList<Viewer3DNodeVolume>();
+
+        // the volumes that are filled in place
+        final List<Viewer3DNodeVolume> unfilled = new ArrayList<Viewer3DNodeVolume>();
+        final List<vtkImageData> images = new ArrayList<vtkImageData>();
+        final List<Viewer3DNodeAxes.Volume> axes = new ArrayList<Viewer3DNodeAxes.Volume>();
+
+        // the volumes that are loaded through a pyramid
+        final List<Viewer3DNodeVolume> coarse = new LinkedList<Viewer3DNodeVolume>();
+
+        for (final Viewer3DNodeVolume v : volumes) {
+            if (m_unfilled.containsKey(v) && !unfilled.contains(v)) {
+                unfilled.add(v);
+                images.add(m_unfilled.get(v));
+                axes.add(v.getAxesVolume());
+            } else if (m_coarse.containsKey(v) && !coarse.contains(v)) {
+                coarse.add(v);
+            }
+        }
+
+        if (!unfilled.isEmpty()) {
+            // if this is cancelled, the volumes stay in m_unfilled and are filled again next time
+            m_converter.fillVTKImageData(images, axes, 1);
+            for (int i = 0; i < unfilled.size(); i++) {
+                final Viewer3DNodeVolume v = unfilled.get(i);
+                v.setStatistics(m_converter.getStatistics(images.get(i)));
+                m_unfilled.remove(v);
+            }
+            filled.addAll(unfilled);
+        }
+
+        // hand over every finer level of the pyramids as soon as it is done, the volumes at the coarsest level first
+        while (!coarse.isEmpty()) {
+            int shrink = 1;
+            for (final Viewer3DNodeVolume v : coarse) {
+                shrink = Math.max(shrink, m_coarse.get(v).intValue());
+            }
+
+            final List<Viewer3DNodeVolume> batch = new ArrayList<Viewer3DNodeVolume>();
+            final List<vtkImageData> levels = new ArrayList<vtkImageData>();
+            final List<Viewer3DNodeAxes.Volume> batchAxes = new ArrayList<Viewer3DNodeAxes.Volume>();
+            for (final Viewer3DNodeVolume v : coarse) {
+                if (m_coarse.get(v).intValue() == shrink) {
+                    batch.add(v);
+                    levels.add(m_converter.createVTKImageData(v.getAxesVolume(), shrink / 2));
+                    batchAxes.add(v.getAxesVolume());
+                }
+            }
+
+            try {
+                m_converter.fillVTKImageData(levels, batchAxes, shrink / 2);
+            } catch (final CancellationException e) {
+                // the volumes keep their current level and continue from there next time
+                for (final vtkImageData l : levels) {
+                    l.Delete();
+                }
+                throw e;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                final Viewer3DNodeVolume v = batch.get(i);
+                v.setPendingImage(levels.get(i), m_converter.getStatistics(levels.get(i)));
+
+                if ((shrink / 2) > 1) {
+                    m_coarse.put(v, Integer.valueOf(shrink / 2));
+                } else {
+                    m_coarse.remove(v);
+                    coarse.remove(v);
+                    filled.add(v);
+                }
+            }
+        }
+
+        // the finer levels take more memory than the coarse ones they replace
+        if (m_caching && !filled.isEmpty()) {
+            final Set<Viewer3DNodeAxes.VolumeKey> keep = getDisplayedKeys();
+            keep.addAll(m_inUse);
+            for (final Viewer3DNodeVolume v : volumes) {
+                keep.add(v.getAxesVolume().getKey());
+            }
+            trimCache(keep);
+        }
+
+        return filled;
+    }
+
+    /**
+     * The factor by which the coarsest level of the pyramid of a volume is shrunk, 1 if there is no pyramid.
+     */
+    private int getPyramidShrink(final Viewer3DNodeAxes.Volume volume) {
+        long voxels = 1;
+        for (final Viewer3DNodeAxis a : volume.getDisplayed()) {
+            voxels *= a.getExtent();
+        }
+
+        return voxels < PYRAMID_MIN_VOXELS ? 1 : 1 << m_pyramidLevels;
+    }
+
+    /**
+     * Set the number of coarser levels a volume is loaded in before its full resolution.<br>
+     *
+     * Each level halves the resolution of the next finer one along every axis. The levels are only used for volumes
+     * whose values are filled in later, see {@link #getVolume(Viewer3DNodeAxes.Volume, boolean)}. The coarsest level
+     * is kept to be rendered while the user interacts with the view.
+     *
+     * @param levels the number of coarser levels, 0 to load the full resolution only
+     */
+    public final void setPyramidLevels(final int levels) {
+        if (levels < 0) {
+            throw new IllegalArgumentException("levels must not be negative!");
+        }
+        m_pyramidLevels = levels;
+    }
+
     /**
      * Set the mapper to use in the next volume.
      *
@@ -206,6 +789,71 @@ public class Viewer3DNodeImageAdmin<T extends RealType<T>> {
         m_mapper = mapper;
     }
 
+    /**
+     * Set the threshold of the isosurfaces of the next volumes.
+     *
+     * @param threshold the threshold, NaN for the default of each volume
+     * @see Viewer3DNodeVolume#setSurfaceThreshold(double)
+     */
+    public final void setSurfaceThreshold(final double threshold) {
+        m_surfaceThreshold = threshold;
+    }
+
+    /**
+     * Set whether the volumes returned from now on delete a mapper as soon as another one is set.
+     *
+     * @param release true to save the memory of the unused mappers
+     * @see Viewer3DNodeVolume#setReleaseUnusedMappers(boolean)
+     */
+    public final void setReleaseUnusedMappers(final boolean release) {
+        m_releaseUnusedMappers = release;
+    }
+
+    /**
+     * Set the pool used to convert the volumes in parallel.
+     *
+     * @param pool the pool, or {@code null} to convert on the calling thread
+     * @see Viewer3DNodeImageToVTK#setForkJoinPool(ForkJoinPool)
+     */
+    public final void setConversionPool(final ForkJoinPool pool) {
+        m_converter.setForkJoinPool(pool);
+    }
+
+    /**
+     * Set how the scalar type of the converted volumes is chosen.
+     *
+     * @param policy the policy
+     * @see Viewer3DNodeImageToVTK#setScalarPolicy(Viewer3DNodeImageToVTK.ScalarPolicy)
+     */
+    public final void setScalarPolicy(final Viewer3DNodeImageToVTK.ScalarPolicy policy) {
+        m_converter.setScalarPolicy(policy);
+        m_prefetchConverter.setScalarPolicy(policy);
+    }
+
+    /**
+     * Set the cache on disk that keeps the converted volumes, e.g. {@link Viewer3DNodeDiskCache#getDefault()}.
+     *
+     * @param cache the cache, or {@code null} to convert every volume
+     * @see Viewer3DNodeImageToVTK#setDiskCache(Viewer3DNodeDiskCache)
+     */
+    public final void setDiskCache(final Viewer3DNodeDiskCache cache) {
+        m_converter.setDiskCache(cache);
+        m_prefetchConverter.setDiskCache(cache);
+    }
+
+    /**
+     * Set how many positions ahead of and behind the manipulated volume are loaded in the background.
+     *
+     * @param distance the number of positions in each direction, 0 to disable prefetching
+     * @see #prefetch()
+     */
+    public final void setPrefetchDistance(final int distance) {
+        if (distance < 0) {
+            throw new IllegalArgumentException("distance must not be negative!");
+        }
+        m_prefetchDistance = distance;
+    }
+
     /**
      * Sets whether or not this instance is caching.
      *
@@ -215,6 +863,28 @@ public class Viewer3DNodeImageAdmin<T extends RealType<T>> {
         m_caching = caching;
     }
 
+    /**
+     * Set the number of bytes of native memory the cached volumes may take. If they take more, the least recently
+     * used volumes that are not displayed are deleted.<br>
+     *
+     * The budget is shared by the volumes of all views.
+     *
+     * @param budget the budget in bytes, {@link Long#MAX_VALUE} for no bound
+     * @see Viewer3DNodeVolumeCache#setBudget(long)
+     */
+    public final void setCacheBudget(final long budget) {
+        m_cache.setBudget(budget);
+    }
+
+    /**
+     * Gets the cache used by this instance, e.g. to read its hit, miss and eviction counters.
+     *
+     * @return the cache
+     */
+    public final Viewer3DNodeVolumeCache getCache() {
+        return m_cache;
+    }
+
     /**
      * Gets the current volume for this instance.
      *
@@ -225,21 +895,36 @@ public class Viewer3DNodeImageAdmin<T extends RealType<T>> {
     }
 
     /**
-     * If this method is called, all images cached by this instance will be deleted by a call to the
-     * vtkImageData.Delete() method.<br>
+     * If this method is called, this instance gives up all its volumes.<br>
      *
-     * This means that the memory of all images will be freed, regardless if one of the images is currently being
-     * rendered!
+     * The complete volumes stay in the shared cache, so that another view of the same image can use them, until they
+     * are evicted. All other volumes are deleted by a call to the vtkImageData.Delete() method, regardless if one of
+     * them is currently being rendered!
      */
     public final void delete() {
+        synchronized (m_prefetchLock) {
+            m_deleted = true;
+        }
+        cancelPrefetches(Collections.<Viewer3DNodeAxes.VolumeKey> emptySet());
+
         if (m_cache != null) {
-            for (final Viewer3DNodeVolume v : m_cache.values()) {
-                v.delete(false);
+            // the volumes that have not been loaded completely are useless to anyone else
+            final Set<Viewer3DNodeVolume> incomplete = new HashSet<Viewer3DNodeVolume>(m_unfilled.keySet());
+            incomplete.addAll(m_coarse.keySet());
+            for (final Viewer3DNodeVolume v : incomplete) {
+                m_cache.discard(m_owner, m_image, v.getAxesVolume().getKey());
             }
-            m_cache.clear();
+            m_cache.release(m_owner);
+        }
+        for (final Viewer3DNodeVolume v : m_uncached.values()) {
+            v.delete(false);
         }
+        m_uncached.clear();
+        m_unfilled.clear();
+        m_coarse.clear();
 
         m_converter = null;
+        m_prefetchConverter = null;
         m_current = null;
 
         m_cache = null;
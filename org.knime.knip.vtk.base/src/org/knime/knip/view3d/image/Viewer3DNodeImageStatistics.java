@@ -0,0 +1,489 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The statistics of the values of a vtkImageData, gathered while the image is filled.<br>
+ *
+ * Integer images count every possible value, so their histograms are exact for any binning. Float images count their
+ * values in bins over the range of the finite values, which are rebinned from a finer histogram gathered in the same
+ * pass.
+ *
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+public final class Viewer3DNodeImageStatistics {
+
+    /**
+     * Collects the statistics of the parts of an image, can be used from several threads at once.
+     */
+    static final class Accumulator {
+
+        // the number of fine bins a float histogram is collected in per final bin
+        private static final int FINE_BINS_PER_BIN = 64;
+
+        private final Viewer3DNodeScalarType m_type;
+
+        private final int m_numBins;
+
+        // the number of bins the partial results count in
+        private final int m_partialBins;
+
+        // the partial results, one per thread that is adding at the same time
+        private final ConcurrentLinkedQueue<Partial> m_partials = new ConcurrentLinkedQueue<Partial>();
+
+        private final ConcurrentLinkedQueue<Partial> m_all = new ConcurrentLinkedQueue<Partial>();
+
+        /**
+         * Collect the statistics for an image of an integer type.
+         *
+         * @param type the scalar type of the image
+         */
+        Accumulator(final Viewer3DNodeScalarType type) {
+            m_type = type;
+            m_numBins = (int)(type.getMax() - type.getMin()) + 1;
+            m_partialBins = m_numBins;
+        }
+
+        /**
+         * Collect the statistics for an image of the float type, counting the values in bins over the range of the
+         * finite values.<br>
+         *
+         * The range is not known beforehand, so the values are counted in finer bins whose range is doubled as needed,
+         * and rebinned in {@link #finish(Viewer3DNodeBrickSummary)}. A value may end up in the neighbouring bin if it is
+         * closer to the border than a fine bin is wide.
+         *
+         * @param type the scalar type of the image
+         * @param numBins the number of bins
+         */
+        Accumulator(final Viewer3DNodeScalarType type, final int numBins) {
+            m_type = type;
+            m_numBins = numBins;
+            m_partialBins = numBins * FINE_BINS_PER_BIN;
+        }
+
+        /**
+         * Add some values of the image.
+         *
+         * @param data the java array holding the values, as created by the scalar type
+         * @param offset the index of the first value
+         * @param length the number of values
+         */
+        void add(final Object data, final int offset, final int length) {
+            Partial partial = m_partials.poll();
+            if (partial == null) {
+                partial = new Partial(m_partialBins);
+                m_all.add(partial);
+            }
+
+            final long[] counts = partial.m_counts;
+            switch (m_type) {
+                case UNSIGNED_CHAR:
+                    final byte[] bytes = (byte[])data;
+                    for (int i = offset; i < (offset + length); i++) {
+                        counts[bytes[i] & 0xff]++;
+                    }
+                    break;
+                case SHORT:
+                    final short[] shorts = (short[])data;
+                    for (int i = offset; i < (offset + length); i++) {
+                        counts[shorts[i] - Short.MIN_VALUE]++;
+                    }
+                    break;
+                case UNSIGNED_SHORT:
+                    final short[] ushorts = (short[])data;
+                    for (int i = offset; i < (offset + length); i++) {
+                        counts[ushorts[i] & 0xffff]++;
+                    }
+                    break;
+                default:
+                    addFloats(partial, (float[])data, offset, length);
+                    break;
+            }
+            partial.m_count += length;
+
+            m_partials.add(partial);
+        }
+
+        private void addFloats(final Partial partial, final float[] floats, final int offset, final int length) {
+            // the range of the piece first, it is still in the cache
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = offset; i < (offset + length); i++) {
+                final double v = floats[i];
+                if ((v < min) && !Double.isInfinite(v)) {
+                    min = v;
+                }
+                if ((v > max) && !Double.isInfinite(v)) {
+                    max = v;
+                }
+            }
+            if (min > max) {
+                // no finite values at all
+                return;
+            }
+            partial.m_min = Math.min(partial.m_min, min);
+            partial.m_max = Math.max(partial.m_max, max);
+            partial.cover(min, max);
+
+            final long[] counts = partial.m_counts;
+            for (int i = offset; i < (offset + length); i++) {
+                final double v = floats[i];
+                if (!Double.isInfinite(v) && !Double.isNaN(v)) {
+                    final int bin = (int)((v - partial.m_origin) / partial.m_binWidth);
+                    counts[Math.min(bin, counts.length - 1)]++;
+                }
+            }
+        }
+
+        /**
+         * Merge everything that has been added so far.
+         *
+         * @param bricks the brick summary collected alongside, may be {@code null}
+         * @return the statistics
+         */
+        Viewer3DNodeImageStatistics finish(final Viewer3DNodeBrickSummary bricks) {
+            final long[] counts = new long[m_numBins];
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            long count = 0;
+
+            for (final Partial p : m_all) {
+                min = Math.min(min, p.m_min);
+                max = Math.max(max, p.m_max);
+                count += p.m_count;
+            }
+
+            final double origin;
+            final double binWidth;
+            if (m_type != Viewer3DNodeScalarType.FLOAT) {
+                origin = m_type.getMin();
+                binWidth = 1;
+
+                for (final Partial p : m_all) {
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] += p.m_counts[i];
+                    }
+                }
+
+                // the smallest and the largest value that occurs
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        min = Math.min(min, origin + i);
+                        max = Math.max(max, origin + i);
+                    }
+                }
+            } else {
+                origin = min <= max ? min : 0;
+                binWidth = (max > min ? max - min : 1) / m_numBins;
+
+                // each fine bin goes to the bin its centre falls into, the largest value into the last bin
+                for (final Partial p : m_all) {
+                    for (int i = 0; i < p.m_counts.length; i++) {
+                        if (p.m_counts[i] > 0) {
+                            final double centre = p.m_origin + ((i + 0.5) * p.m_binWidth);
+                            final int bin = (int)Math.floor((centre - origin) / binWidth);
+                            counts[Math.max(0, Math.min(bin, m_numBins - 1))] += p.m_counts[i];
+                        }
+                    }
+                }
+            }
+
+            if (min > max) {
+                min = 0;
+                max = 0;
+            }
+
+            return new Viewer3DNodeImageStatistics(counts, origin, binWidth, min, max, count, bricks);
+        }
+    }
+
+    /**
+     * The part of the statistics collected by one thread.
+     */
+    private static final class Partial {
+
+        private final long[] m_counts;
+
+        private double m_min = Double.POSITIVE_INFINITY;
+
+        private double m_max = Double.NEGATIVE_INFINITY;
+
+        private long m_count = 0;
+
+        // the bins of a float histogram, the width is 0 until the first finite value is added
+        private double m_origin = 0;
+
+        private double m_binWidth = 0;
+
+        Partial(final int numBins) {
+            m_counts = new long[numBins];
+        }
+
+        /**
+         * Widen the bins of a float histogram until they cover [min, max], merging pairs of neighbouring bins.
+         */
+        void cover(final double min, final double max) {
+            final int n = m_counts.length;
+            if (m_binWidth == 0) {
+                m_origin = min;
+                m_binWidth = (max - min) / n;
+                if (!(m_binWidth > 0)) {
+                    // a single value so far, the bins grow once there are more
+                    m_binWidth = Math.max(Math.ulp((float)min), Float.MIN_NORMAL);
+                }
+            }
+
+            while ((min < m_origin) || (max >= (m_origin + (n * m_binWidth)))) {
+                // towards the lower values, the old bins become the upper half, otherwise the lower half
+                final boolean down = min < m_origin;
+                final int shift = down ? n / 2 : 0;
+                final long[] merged = new long[n];
+                for (int i = 0; i < (n / 2); i++) {
+                    merged[shift + i] = m_counts[2 * i] + m_counts[(2 * i) + 1];
+                }
+                System.arraycopy(merged, 0, m_counts, 0, n);
+                if (down) {
+                    m_origin -= n * m_binWidth;
+                }
+                m_binWidth *= 2;
+            }
+        }
+    }
+
+    private final long[] m_counts;
+
+    private final double m_origin;
+
+    private final double m_binWidth;
+
+    private final double m_min;
+
+    private final double m_max;
+
+    private final long m_count;
+
+    // the smallest and the largest value of each brick of the image, null if they have not been collected
+    private final Viewer3DNodeBrickSummary m_bricks;
+
+    private Viewer3DNodeImageStatistics(final long[] counts, final double origin, final double binWidth,
+                                        final double min, final double max, final long count,
+                                        final Viewer3DNodeBrickSummary bricks) {
+        m_counts = counts;
+        m_origin = origin;
+        m_binWidth = binWidth;
+        m_min = min;
+        m_max = max;
+        m_count = count;
+        m_bricks = bricks;
+    }
+
+    /**
+     * Read statistics written by {@link #write(DataOutput)}.
+     *
+     * @param in the input
+     * @return the statistics
+     * @throws IOException if the input can not be read
+     */
+    static Viewer3DNodeImageStatistics read(final DataInput in) throws IOException {
+        final double origin = in.readDouble();
+        final double binWidth = in.readDouble();
+        final double min = in.readDouble();
+        final double max = in.readDouble();
+        final long count = in.readLong();
+
+        final int numBins = in.readInt();
+        if (numBins < 0) {
+            throw new IOException("Invalid number of bins: " + numBins);
+        }
+        final long[] counts = new long[numBins];
+        for (int i = 0; i < numBins; i++) {
+            counts[i] = in.readLong();
+        }
+
+        final Viewer3DNodeBrickSummary bricks = in.readBoolean() ? Viewer3DNodeBrickSummary.read(in) : null;
+
+        return new Viewer3DNodeImageStatistics(counts, origin, binWidth, min, max, count, bricks);
+    }
+
+    /**
+     * Write these statistics, so that they can be read by {@link #read(DataInput)}.
+     *
+     * @param out the output
+     * @throws IOException if the output can not be written
+     */
+    void write(final DataOutput out) throws IOException {
+        out.writeDouble(m_origin);
+        out.writeDouble(m_binWidth);
+        out.writeDouble(m_min);
+        out.writeDouble(m_max);
+        out.writeLong(m_count);
+
+        out.writeInt(m_counts.length);
+        for (final long c : m_counts) {
+            out.writeLong(c);
+        }
+
+        out.writeBoolean(m_bricks != null);
+        if (m_bricks != null) {
+            m_bricks.write(out);
+        }
+    }
+
+    /**
+     * Gets the smallest finite value of the image.
+     *
+     * @return the minimum
+     */
+    public double getMin() {
+        return m_min;
+    }
+
+    /**
+     * Gets the largest finite value of the image.
+     *
+     * @return the maximum
+     */
+    public double getMax() {
+        return m_max;
+    }
+
+    /**
+     * Gets the number of values of the image.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * Gets the minimum and maximum of each brick of the image.
+     *
+     * @return the brick summary, {@code null} if it is not known
+     */
+    Viewer3DNodeBrickSummary getBricks() {
+        return m_bricks;
+    }
+
+    /**
+     * Get the histogram of the image, binned the same way as vtkImageAccumulate does it.<br>
+     *
+     * Bin i counts the values v with {@code floor((v - min) / ((max - min) / numBins)) == i}. The result is exact for
+     * integer images, and for float images if the binning is the one the statistics were collected with. Otherwise the
+     * collected bins are distributed by their centers.
+     *
+     * @param min the lower bound of the first bin
+     * @param max the upper bound of the last bin
+     * @param numBins the number of bins
+     * @return the counts
+     */
+    public long[] getHistogram(final double min, final double max, final int numBins) {
+        final double binWidth = Math.abs(max - min) / numBins;
+
+        if ((numBins == m_counts.length) && (min == m_origin) && (binWidth == m_binWidth)) {
+            return m_counts.clone();
+        }
+
+        // integer images have one bin per value, which is its lower bound
+        final double center = m_binWidth == 1 ? 0 : m_binWidth / 2;
+
+        final long[] result = new long[numBins];
+        for (int i = 0; i < m_counts.length; i++) {
+            if (m_counts[i] == 0) {
+                continue;
+            }
+
+            final double bin = Math.floor(((m_origin + (i * m_binWidth) + center) - min) / binWidth);
+            if ((bin >= 0) && (bin < numBins)) {
+                result[(int)bin] += m_counts[i];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the value below which the given fraction of the values of the image lies.<br>
+     *
+     * The result is exact for integer images, and accurate up to the width of a bin for float images.
+     *
+     * @param fraction the fraction, between 0 and 1
+     * @return the percentile
+     */
+    public double getPercentile(final double fraction) {
+        if ((fraction < 0) || (fraction > 1)) {
+            throw new IllegalArgumentException("The fraction must be between 0 and 1!");
+        }
+
+        long total = 0;
+        for (final long c : m_counts) {
+            total += c;
+        }
+
+        final double target = fraction * total;
+        long sum = 0;
+        for (int i = 0; i < m_counts.length; i++) {
+            sum += m_counts[i];
+            if ((sum >= target) && (m_counts[i] > 0)) {
+                final double value = m_origin + (i * m_binWidth);
+                return Math.max(m_min, Math.min(m_max, value));
+            }
+        }
+
+        return m_max;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Gives direct access to the primitive arrays backing an ArrayImg or a PlanarImg.<br>
+ *
+ * Every element of the image is addressed by the index of its plane and its offset within that plane. An ArrayImg is
+ * treated as a PlanarImg that consists of one single plane.<br>
+ *
+ * This is used to copy whole rows of voxels without going through cursors and type conversions.
+ *
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+final class Viewer3DNodeImageStorage {
+
+    /**
+     * The primitive types that can be accessed directly.
+     */
+    enum Kind {
+        /**
+         * UnsignedByteType stored in byte[].
+         */
+        UNSIGNED_BYTE,
+        /**
+         * ShortType stored in short[].
+         */
+        SHORT,
+        /**
+         * UnsignedShortType stored in short[].
+         */
+        UNSIGNED_SHORT,
+        /**
+         * FloatType stored in float[].
+         */
+        FLOAT;
+
+        /**
+         * Find the kind that matches a pixel type.
+         *
+         * @param type the type
+         * @return the kind, or {@code null} if the type is none of the supported ones
+         */
+        static Kind of(final Object type) {
+            final Class<?> c = type.getClass();
+            if (c == UnsignedByteType.class) {
+                return UNSIGNED_BYTE;
+            } else if (c == ShortType.class) {
+                return SHORT;
+            } else if (c == UnsignedShortType.class) {
+                return UNSIGNED_SHORT;
+            } else if (c == FloatType.class) {
+                return FLOAT;
+            }
+            return null;
+        }
+    }
+
+    private final Kind m_kind;
+
+    private final Object[] m_planes;
+
+    // the stride of each dimension within one plane
+    private final long[] m_offsetStrides;
+
+    // the stride of each dimension from one plane to the next
+    private final long[] m_planeStrides;
+
+    private Viewer3DNodeImageStorage(final Kind kind, final Object[] planes, final long[] offsetStrides,
+                                     final long[] planeStrides) {
+        m_kind = kind;
+        m_planes = planes;
+        m_offsetStrides = offsetStrides;
+        m_planeStrides = planeStrides;
+    }
+
+    /**
+     * Inspect the storage of an image.
+     *
+     * @param image the image
+     * @return the storage, or {@code null} if the image is not backed by an ArrayImg or PlanarImg of one of the
+     *         supported types
+     */
+    static Viewer3DNodeImageStorage create(final ImgPlus<?> image) {
+        final Kind kind = Kind.of(image.firstElement());
+        if (kind == null) {
+            return null;
+        }
+
+        Img<?> img = image.getImg();
+        while (img instanceof ImgPlus) {
+            img = ((ImgPlus<?>)img).getImg();
+        }
+
+        final int n = image.numDimensions();
+        final long[] offsetStrides = new long[n];
+        final long[] planeStrides = new long[n];
+        final Object[] planes;
+
+        if (img instanceof ArrayImg) {
+            planes = new Object[]{storageOf(((ArrayImg<?, ?>)img).update(null))};
+
+            long stride = 1;
+            for (int d = 0; d < n; d++) {
+                offsetStrides[d] = stride;
+                stride *= image.dimension(d);
+            }
+        } else if (img instanceof PlanarImg) {
+            final PlanarImg<?, ?> planar = (PlanarImg<?, ?>)img;
+            planes = new Object[planar.numSlices()];
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = storageOf(planar.getPlane(i));
+            }
+
+            offsetStrides[0] = 1;
+            offsetStrides[1] = image.dimension(0);
+            long stride = 1;
+            for (int d = 2; d < n; d++) {
+                planeStrides[d] = stride;
+                stride *= image.dimension(d);
+            }
+        } else {
+            return null;
+        }
+
+        // make sure the arrays hold what the type promises
+        for (final Object p : planes) {
+            if (!fits(kind, p)) {
+                return null;
+            }
+        }
+
+        return new Viewer3DNodeImageStorage(kind, planes, offsetStrides, planeStrides);
+    }
+
+    private static Object storageOf(final Object access) {
+        if (access instanceof ArrayDataAccess) {
+            return ((ArrayDataAccess<?>)access).getCurrentStorageArray();
+        }
+        return null;
+    }
+
+    private static boolean fits(final Kind kind, final Object array) {
+        switch (kind) {
+            case UNSIGNED_BYTE:
+                return array instanceof byte[];
+            case SHORT:
+            case UNSIGNED_SHORT:
+                return array instanceof short[];
+            case FLOAT:
+                return array instanceof float[];
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets the kind of this storage.
+     *
+     * @return the kind
+     */
+    Kind getKind() {
+        return m_kind;
+    }
+
+    /**
+     * Get the size of the range of values a lookup table for this storage must cover.
+     *
+     * @return the number of distinct values, or 0 for float storage
+     */
+    int getLookupSize() {
+        switch (m_kind) {
+            case UNSIGNED_BYTE:
+                return 256;
+            case SHORT:
+            case UNSIGNED_SHORT:
+                return 65536;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Get the value that is found at position i of a lookup table for this storage.
+     *
+     * @param i the index in the lookup table
+     * @return the value
+     */
+    double lookupValue(final int i) {
+        if (m_kind == Kind.SHORT) {
+            return i + Short.MIN_VALUE;
+        }
+        return i;
+    }
+
+    /**
+     * Check whether stepping along the dimension walks through consecutive elements of one plane.
+     *
+     * @param dim the dimension
+     * @param stride the distance of two consecutive elements, e.g. the width of the row for the y dimension
+     * @return true if it does
+     */
+    boolean isContiguous(final int dim, final long stride) {
+        return (m_planeStrides[dim] == 0) && (m_offsetStrides[dim] == stride);
+    }
+
+    private int plane(final long[] pos) {
+        long plane = 0;
+        for (int d = 0; d < pos.length; d++) {
+            plane += pos[d] * m_planeStrides[d];
+        }
+        return (int)plane;
+    }
+
+    private int offset(final long[] pos) {
+        long offset = 0;
+        for (int d = 0; d < pos.length; d++) {
+            offset += pos[d] * m_offsetStrides[d];
+        }
+        return (int)offset;
+    }
+
+    /**
+     * Copy a row of integer values, mapping each of them through a lookup table.<br>
+     *
+     * If the lookup table is {@code null}, short values are copied as they are.
+     *
+     * @param pos the position of the first element
+     * @param dim the dimension along which the row runs
+     * @param length the number of elements to copy
+     * @param lut the table to map the values with, indexed as described by {@link #lookupValue(int)}
+     * @param target the array to write to
+     * @param targetOffset the first index to write to
+     */
+    void copyRow(final long[] pos, final int dim, final int length, final short[] lut, final short[] target,
+                 final int targetOffset) {
+        if (lut == null) {
+            copyRow(pos, dim, length, target, targetOffset);
+            return;
+        }
+
+        int plane = plane(pos);
+        int offset = offset(pos);
+        final int offsetStride = (int)m_offsetStrides[dim];
+        final int planeStride = (int)m_planeStrides[dim];
+
+        if (m_kind == Kind.UNSIGNED_BYTE) {
+            if (planeStride == 0) {
+                final byte[] src = (byte[])m_planes[plane];
+                for (int i = targetOffset; i < (targetOffset + length); i++) {
+                    target[i] = lut[src[offset] & 0xff];
+                    offset += offsetStride;
+                }
+            } else {
+                for (int i = targetOffset; i < (targetOffset + length); i++) {
+                    target[i] = lut[((byte[])m_planes[plane])[offset] & 0xff];
+                    plane += planeStride;
+                }
+            }
+        } else {
+            final int shift = m_kind == Kind.SHORT ? -Short.MIN_VALUE : 0;
+            if (planeStride == 0) {
+                final short[] src = (short[])m_planes[plane];
+                for (int i = targetOffset; i < (targetOffset + length); i++) {
+                    target[i] = lut[(src[offset] + shift) & 0xffff];
+                    offset += offsetStride;
+                }
+            } else {
+                for (int i = targetOffset; i < (targetOffset + length); i++) {
+                    target[i] = lut[(((short[])m_planes[plane])[offset] + shift) & 0xffff];
+                    plane += planeStride;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy a row of values as they are.
+     *
+     * @param pos the position of the first element
+     * @param dim the dimension along which the row runs
+     * @param length the number of elements to copy
+     * @param target the array to write to, of the same primitive type as the storage
+     * @param targetOffset the first index to write to
+     */
+    void copyRow(final long[] pos, final int dim, final int length, final Object target, final int targetOffset) {
+        int plane = plane(pos);
+        int offset = offset(pos);
+        final int offsetStride = (int)m_offsetStrides[dim];
+        final int planeStride = (int)m_planeStrides[dim];
+
+        if ((planeStride == 0) && (offsetStride == 1)) {
+            System.arraycopy(m_planes[plane], offset, target, targetOffset, length);
+            return;
+        }
+
+        switch (m_kind) {
+            case UNSIGNED_BYTE:
+                final byte[] bytes = (byte[])target;
+                for (int i = targetOffset; i < (targetOffset + length); i++) {
+                    bytes[i] = ((byte[])m_planes[plane])[offset];
+                    offset += offsetStride;
+                    plane += planeStride;
+                }
+                break;
+            case FLOAT:
+                final float[] floats = (float[])target;
+                for (int i = targetOffset; i < (targetOffset + length); i++) {
+                    floats[i] = ((float[])m_planes[plane])[offset];
+                    offset += offsetStride;
+                    plane += planeStride;
+                }
+                break;
+            default:
+                final short[] shorts = (short[])target;
+                for (int i = targetOffset; i < (targetOffset + length); i++) {
+                    shorts[i] = ((short[])m_planes[plane])[offset];
+                    offset += offsetStride;
+                    plane += planeStride;
+                }
+                break;
+        }
+    }
+}
@@ -48,10 +48,18 @@
  */
 package org.knime.knip.view3d.image;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.imagej.ImgPlus;
 import net.imagej.axis.TypedAxis;
@@ -68,11 +76,11 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ShortType;
 import net.imglib2.view.Views;
 
+import org.knime.core.node.NodeLogger;
 import org.knime.knip.core.ui.event.EventService;
 
 import vtk.vtkDataArray;
 import vtk.vtkImageData;
-import vtk.vtkTypeInt16Array;
 
 /**
  * This class is used to transfer data from imglib2 to the vtkImageData format.
@@ -88,8 +96,205 @@ import vtk.vtkTypeInt16Array;
  */
 public class Viewer3DNodeImageToVTK<T extends RealType<T>> {
 
+    /**
+     * Decides which scalar type the created vtkImageData has.
+     */
+    public enum ScalarPolicy {
+        /**
+         * Scale the values of every image type into the range of short.
+         */
+        SHORT,
+        /**
+         * Keep unsigned 8 bit, 16 bit and float images in their own type, scale all other types into the range of
+         * short.
+         */
+        NATIVE,
+        /**
+         * As NATIVE, but map float images onto unsigned 8 bit, using the range of the values in the volume.
+         */
+        REQUANTIZE_8BIT,
+        /**
+         * As NATIVE, but map float images onto unsigned 16 bit, using the range of the values in the volume.
+         */
+        REQUANTIZE_16BIT
+    }
+
+    /**
+     * How the values of the image are written into the vtkImageData.
+     */
+    private enum Mode {
+        /**
+         * The value is copied as it is.
+         */
+        RAW,
+        /**
+         * The value is scaled from the range of the image type into the range of short.
+         */
+        SCALED,
+        /**
+         * The value is mapped from the range found in the volume onto the range of the scalar type.
+         */
+        WINDOW
+    }
+
+    /**
+     * Work that is done on some slices of a volume.
+     */
+    private interface SlabOperation {
+
+        /**
+         * Process the slices [zStart, zEnd).
+         *
+         * @param zStart the first slice
+         * @param zEnd the slice after the last one
+         */
+        void run(int zStart, int zEnd);
+    }
+
+    /**
+     * Runs an operation on the slices [zStart, zEnd), splitting the range until it is not thicker than SLAB_DEPTH.
+     */
+    private static final class SlabTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SlabOperation m_operation;
+
+        private final int m_zStart;
+
+        private final int m_zEnd;
+
+        SlabTask(final SlabOperation operation, final int zStart, final int zEnd) {
+            m_operation = operation;
+            m_zStart = zStart;
+            m_zEnd = zEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if ((m_zEnd - m_zStart) <= SLAB_DEPTH) {
+                m_operation.run(m_zStart, m_zEnd);
+            } else {
+                final int mid = (m_zStart + m_zEnd) >>> 1;
+                invokeAll(new SlabTask(m_operation, m_zStart, mid), new SlabTask(m_operation, mid, m_zEnd));
+            }
+        }
+    }
+
+    /**
+     * Counts the converted voxels of one volume and publishes a LoadImageEvent whenever another percent is done.<br>
+     *
+     * Can be advanced from several threads at once.
+     */
+    private final class LoadProgress {
+
+        private final long m_total;
+
+        private final AtomicLong m_done = new AtomicLong();
+
+        private final boolean m_publish;
+
+        private volatile int m_published = 0;
+
+        LoadProgress(final long total, final boolean publish) {
+            m_total = total > 0 ? total : 1;
+            m_publish = publish;
+        }
+
+        void advance(final long voxels) {
+            if (!m_publish) {
+                return;
+            }
+
+            final int percent = (int)((m_done.addAndGet(voxels) * 100) / m_total);
+            if (percent > m_published) {
+                publish(percent);
+            }
+        }
+
+        private synchronized void publish(final int percent) {
+            if (percent > m_published) {
+                m_published = percent;
+                m_eventService.publish(new LoadImageEvent(percent));
+            }
+        }
+    }
+
+    /**
+     * Reads the voxels of some slices of a volume in x, y, z order.<br>
+     *
+     * A cursor is used if it walks through the image in that order, otherwise a RandomAccess.
+     */
+    private final class SlabReader {
+
+        private final Cursor<T> m_cursor;
+
+        private final RandomAccess<T> m_ra;
+
+        private final long[] m_pos;
+
+        private final int[] m_dims;
+
+        private final long[] m_max;
+
+        SlabReader(final int[] dims, final long[] hiddenPos, final int zStart, final int zEnd) {
+            m_dims = dims;
+            m_pos = Arrays.copyOf(hiddenPos, hiddenPos.length);
+            m_pos[dims[2]] = zStart;
+
+            m_max = Arrays.copyOf(m_pos, m_pos.length);
+            m_max[dims[0]] = m_dimDepth[dims[0]] - 1;
+            m_max[dims[1]] = m_dimDepth[dims[1]] - 1;
+            m_max[dims[2]] = zEnd - 1;
+
+            // the flat cursor only walks in x, y, z order if the axes are ordered the same way in the image
+            if ((dims[0] < dims[1]) && (dims[1] < dims[2])
+                    && m_image.iterationOrder().equals(new FlatIterationOrder(m_image))) {
+                final Interval interval = new FinalInterval(m_pos, m_max);
+                final Img<T> view = new ImgView<T>(Views.interval(m_image, interval), m_image.factory());
+                m_cursor = view.localizingCursor();
+                m_ra = null;
+            } else {
+                m_cursor = null;
+                m_ra = m_image.randomAccess();
+                // step back once, so that the first call of next() ends up at the first voxel
+                m_pos[dims[0]] = -1;
+            }
+        }
+
+        T next() {
+            if (m_cursor != null) {
+                m_cursor.fwd();
+                return m_cursor.get();
+            }
+
+            // advance x, wrapping over into y and z
+            if (++m_pos[m_dims[0]] > m_max[m_dims[0]]) {
+                m_pos[m_dims[0]] = 0;
+                if (++m_pos[m_dims[1]] > m_max[m_dims[1]]) {
+                    m_pos[m_dims[1]] = 0;
+                    m_pos[m_dims[2]]++;
+                }
+            }
+
+            m_ra.setPosition(m_pos);
+            return m_ra.get();
+        }
+    }
+
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(Viewer3DNodeImageToVTK.class);
+
     private static final int MINDIMS = 3;
 
+    // the number of slices a task of the parallel conversion works on at least
+    private static final int SLAB_DEPTH = 16;
+
+    // the maximal size of the chunks that are converted on the heap before they are copied into vtk
+    private static final long CHUNK_BYTES = 16L << 20;
+
+    // the number of values the key of the disk cache is computed from
+    private static final long CONTENT_SAMPLES = 1L << 16;
+
     private TypedAxis[] m_axes = null;
 
     private ImgPlus<T> m_image = null;
@@ -100,12 +305,42 @@ public class Viewer3DNodeImageToVTK<T extends RealType<T>> {
 
     private final Map<String, Integer> m_dimensionMap;
 
-    private final Map<String, vtkImageData> m_createdImages;
+    private final Map<Viewer3DNodeAxes.VolumeKey, vtkImageData> m_createdImages;
+
+    // the requantization windows found so far, by the key of their volume
+    private final Map<Viewer3DNodeAxes.VolumeKey, double[]> m_windows =
+            new HashMap<Viewer3DNodeAxes.VolumeKey, double[]>();
+
+    // the statistics gathered while the images were filled
+    private final Map<vtkImageData, Viewer3DNodeImageStatistics> m_statistics =
+            Collections.synchronizedMap(new WeakHashMap<vtkImageData, Viewer3DNodeImageStatistics>());
+
+    private int m_histogramBins = 250;
+
+    // keeps the converted volumes across views and sessions, null if there is none
+    private Viewer3DNodeDiskCache m_diskCache = null;
+
+    // identifies the image in the disk cache, computed when it is needed first
+    private Long m_contentHash = null;
 
     private final EventService m_eventService;
 
     private boolean m_caching;
 
+    private ForkJoinPool m_pool = null;
+
+    // direct access to the primitive arrays of the image, null if there is none
+    private final Viewer3DNodeImageStorage m_storage;
+
+    private ScalarPolicy m_policy;
+
+    private Viewer3DNodeScalarType m_scalarType;
+
+    private Mode m_mode;
+
+    // the scaled value for every possible value of the storage, null if values are copied as they are
+    private short[] m_lut;
+
     /**
      * Set up a new converter for the given ImgPlusValue.
      *
@@ -131,7 +366,7 @@ public class Viewer3DNodeImageToVTK<T extends RealType<T>> {
 
         // set up the maps
         m_dimensionMap = new HashMap<String, Integer>();
-        m_createdImages = new HashMap<String, vtkImageData>();
+        m_createdImages = new HashMap<Viewer3DNodeAxes.VolumeKey, vtkImageData>();
 
         m_image = image;
 
@@ -156,6 +391,88 @@ public class Viewer3DNodeImageToVTK<T extends RealType<T>> {
             m_dimensionMap.put(label, i);
         }
 
+        m_storage = Viewer3DNodeImageStorage.create(m_image);
+        setScalarPolicy(ScalarPolicy.NATIVE);
+    }
+
+    /**
+     * Set how the scalar type of the created images is chosen.<br>
+     *
+     * Images that have already been cached keep their type.
+     *
+     * @param policy the policy
+     */
+    public final void setScalarPolicy(final ScalarPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException();
+        }
+
+        m_policy = policy;
+
+        final Viewer3DNodeImageStorage.Kind kind = Viewer3DNodeImageStorage.Kind.of(m_image.firstElement());
+
+        m_mode = Mode.RAW;
+        if ((policy == ScalarPolicy.SHORT) || (kind == null)) {
+            m_scalarType = Viewer3DNodeScalarType.SHORT;
+            m_mode = Mode.SCALED;
+        } else if (kind == Viewer3DNodeImageStorage.Kind.UNSIGNED_BYTE) {
+            m_scalarType = Viewer3DNodeScalarType.UNSIGNED_CHAR;
+        } else if (kind == Viewer3DNodeImageStorage.Kind.SHORT) {
+            m_scalarType = Viewer3DNodeScalarType.SHORT;
+        } else if (kind == Viewer3DNodeImageStorage.Kind.UNSIGNED_SHORT) {
+            m_scalarType = Viewer3DNodeScalarType.UNSIGNED_SHORT;
+        } else if (policy == ScalarPolicy.REQUANTIZE_8BIT) {
+            m_scalarType = Viewer3DNodeScalarType.UNSIGNED_CHAR;
+            m_mode = Mode.WINDOW;
+        } else if (policy == ScalarPolicy.REQUANTIZE_16BIT) {
+            m_scalarType = Viewer3DNodeScalarType.UNSIGNED_SHORT;
+            m_mode = Mode.WINDOW;
+        } else {
+            m_scalarType = Viewer3DNodeScalarType.FLOAT;
+        }
+
+        m_lut = null;
+        if ((m_mode == Mode.SCALED) && (m_storage != null)) {
+            m_lut = buildLookupTable(m_storage);
+        }
+    }
+
+    /**
+     * Gets the scalar policy of this instance.
+     *
+     * @return the policy
+     */
+    public final ScalarPolicy getScalarPolicy() {
+        return m_policy;
+    }
+
+    /**
+     * Scale every value the storage can hold once, so that copying the storage only needs a table lookup.
+     *
+     * @param storage the storage of the image
+     * @return the table, or {@code null} if scaling does not change any value
+     */
+    private short[] buildLookupTable(final Viewer3DNodeImageStorage storage) {
+        final int size = storage.getLookupSize();
+        if (size == 0) {
+            return null;
+        }
+
+        final T in = m_image.firstElement().createVariable();
+        final ShortType tmp = new ShortType();
+        final Convert<T, ShortType> convert = new Convert<T, ShortType>(in, tmp, TypeConversionTypes.SCALE);
+
+        final short[] lut = new short[size];
+        boolean identity = true;
+        for (int i = 0; i < size; i++) {
+            final double val = storage.lookupValue(i);
+            in.setReal(val);
+            lut[i] = convert.compute(in, tmp).get();
+            identity &= lut[i] == val;
+        }
+
+        // only short values can be copied without any mapping
+        return (identity && (storage.getKind() == Viewer3DNodeImageStorage.Kind.SHORT)) ? null : lut;
     }
 
     /**
@@ -164,6 +481,7 @@ public class Viewer3DNodeImageToVTK<T extends RealType<T>> {
      * @param volume the volume to extract
      *
      * @return the vtkImageData
+     * @throws CancellationException if the calling thread is interrupted during the conversion
      */
     public final vtkImageData getVTKImageData(final Viewer3DNodeAxes.Volume volume) {
 
@@ -171,7 +489,7 @@ public class Viewer3DNodeImageToVTK<T extends RealType<T>> {
             throw new NullPointerException();
         }
 
-        final String store = volume.getCacheString();
+        final Viewer3DNodeAxes.VolumeKey store = volume.getKey();
 
         vtkImageData result;
 
@@ -180,132 +498,976 @@ public class Viewer3DNodeImageToVTK<T extends RealType<T>> {
             // pack the current labels in there
             result = m_createdImages.get(store);
         } else {
+            result = createVTKImageData(volume);
+            try {
+                fillVTKImageData(result, volume);
+            } catch (final CancellationException e) {
+                result.Delete();
+                throw e;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Create the vtkImageData for some dimensions without filling in the values of the image.<br>
+     *
+     * All scalars of the new image are zero, use {@link #fillVTKImageData(vtkImageData, Viewer3DNodeAxes.Volume)} to
+     * fill them.
+     *
+     * @param volume the volume to create the image for
+     * @return the empty vtkImageData
+     */
+    public final vtkImageData createVTKImageData(final Viewer3DNodeAxes.Volume volume) {
+        return createVTKImageData(volume, 1);
+    }
+
+    /**
+     * Create the vtkImageData for a lower resolution of some dimensions without filling in the values of the
+     * image.<br>
+     *
+     * The image holds every shrink-th voxel along each axis, with the spacing enlarged accordingly, so that it covers
+     * the same space as the full resolution.
+     *
+     * @param volume the volume to create the image for
+     * @param shrink the factor by which the resolution is reduced along each axis, 1 for the full resolution
+     * @return the empty vtkImageData
+     */
+    public final vtkImageData createVTKImageData(final Viewer3DNodeAxes.Volume volume, final int shrink) {
+
+        if (volume == null) {
+            throw new NullPointerException();
+        }
+
+        if (shrink < 1) {
+            throw new IllegalArgumentException("shrink must be at least 1!");
+        }
+
+        // set up the image
+
+        final List<Viewer3DNodeAxis> displayed = volume.getDisplayed();
+        // define the axes
+        final int x = m_dimensionMap.get(displayed.get(0).getLabel()).intValue();
+        final int y = m_dimensionMap.get(displayed.get(1).getLabel()).intValue();
+        final int z = m_dimensionMap.get(displayed.get(2).getLabel()).intValue();
+
+        // double spacingX = 1.0;
+        // double spacingY = 1.0;
+        // double spacingZ = 1.0;
+
+        final double spacingX =
+                ((m_image.averageScale(x) <= 0.0) || Double.isNaN(m_image.averageScale(x))) ? 1.0 : m_image
+                        .averageScale(x);
+        final double spacingY =
+                ((m_image.averageScale(y) <= 0.0) || Double.isNaN(m_image.averageScale(y))) ? 1.0 : m_image
+                        .averageScale(y);
+        final double spacingZ =
+                ((m_image.averageScale(z) <= 0.0) || Double.isNaN(m_image.averageScale(z))) ? 1.0 : m_image
+                        .averageScale(z);
+
+        // Set up the vtkImageData
+        final vtkImageData image = new vtkImageData();
+        image.SetDimensions(shrunk(m_dimDepth[x], shrink), shrunk(m_dimDepth[y], shrink),
+                            shrunk(m_dimDepth[z], shrink));
+        image.SetOrigin(0.0, 0.0, 0.0);
+        image.SetSpacing(spacingX * shrink, spacingY * shrink, spacingZ * shrink);
+        m_scalarType.setOn(image);
+        image.AllocateScalars();
+
+        // vtk does not clear the allocated memory
+        image.GetPointData().GetScalars().FillComponent(0, 0);
+
+        return image;
+    }
+
+    /**
+     * Fill the values of a volume into an image created by {@link #createVTKImageData(Viewer3DNodeAxes.Volume)}.<br>
+     *
+     * The image is filled slab by slab along its z axis, a {@link LoadSlabsEvent} is published whenever another slab
+     * has been copied into the image.
+     *
+     * @param image the image to fill
+     * @param volume the volume the image was created for
+     * @throws CancellationException if the calling thread is interrupted, the image is then only partly filled
+     */
+    public final void fillVTKImageData(final vtkImageData image, final Viewer3DNodeAxes.Volume volume) {
+        fillVTKImageData(image, volume, 1);
+    }
+
+    /**
+     * Fill the values of a volume into an image created by
+     * {@link #createVTKImageData(Viewer3DNodeAxes.Volume, int)}.<br>
+     *
+     * Only images of the full resolution are cached, and only those advance the LoadImageEvent progress.
+     *
+     * @param image the image to fill
+     * @param volume the volume the image was created for
+     * @param shrink the factor the image was created with
+     * @throws CancellationException if the calling thread is interrupted, the image is then only partly filled
+     */
+    public final void fillVTKImageData(final vtkImageData image, final Viewer3DNodeAxes.Volume volume,
+                                       final int shrink) {
+
+        if ((image == null) || (volume == null)) {
+            throw new NullPointerException();
+        }
+
+        fillVTKImageData(Collections.singletonList(image), Collections.singletonList(volume), shrink);
+    }
 
-            // set up the image
+    /**
+     * Fill the values of several volumes into images created by
+     * {@link #createVTKImageData(Viewer3DNodeAxes.Volume, int)} in one sweep.<br>
+     *
+     * All volumes must display the same axes, they may only differ in the positions of their hidden axes. The slices
+     * of all volumes are converted side by side, so that every part of the image is visited once for all volumes
+     * instead of once per volume, and the work is spread over the pool across all volumes.<br>
+     *
+     * The LoadImageEvent progress covers all volumes together.
+     *
+     * @param images the images to fill
+     * @param volumes the volumes the images were created for, in the same order
+     * @param shrink the factor the images were created with
+     * @throws IllegalArgumentException if the volumes do not display the same axes
+     * @throws CancellationException if the calling thread is interrupted, the images are then only partly filled
+     */
+    public final void fillVTKImageData(final List<vtkImageData> images, final List<Viewer3DNodeAxes.Volume> volumes,
+                                       final int shrink) {
 
-            final List<Viewer3DNodeAxis> displayed = volume.getDisplayed();
-            // define the axes
-            final int x = m_dimensionMap.get(displayed.get(0).getLabel()).intValue();
-            final int y = m_dimensionMap.get(displayed.get(1).getLabel()).intValue();
-            final int z = m_dimensionMap.get(displayed.get(2).getLabel()).intValue();
+        if (images.size() != volumes.size()) {
+            throw new IllegalArgumentException("There must be exactly one image per volume!");
+        }
 
-            // double spacingX = 1.0;
-            // double spacingY = 1.0;
-            // double spacingZ = 1.0;
+        if (volumes.isEmpty()) {
+            return;
+        }
 
-            final double spacingX =
-                    ((m_image.averageScale(x) <= 0.0) || Double.isNaN(m_image.averageScale(x))) ? 1.0 : m_image
-                            .averageScale(x);
-            final double spacingY =
-                    ((m_image.averageScale(y) <= 0.0) || Double.isNaN(m_image.averageScale(y))) ? 1.0 : m_image
-                            .averageScale(y);
-            final double spacingZ =
-                    ((m_image.averageScale(z) <= 0.0) || Double.isNaN(m_image.averageScale(z))) ? 1.0 : m_image
-                            .averageScale(z);
+        if ((m_diskCache != null) && (shrink == 1)) {
+            // only convert what has not been converted before, and keep the result for the next time
+            final List<vtkImageData> missingImages = new ArrayList<vtkImageData>();
+            final List<Viewer3DNodeAxes.Volume> missing = new ArrayList<Viewer3DNodeAxes.Volume>();
+            for (int i = 0; i < volumes.size(); i++) {
+                if (!readFromDisk(images.get(i), volumes.get(i))) {
+                    missingImages.add(images.get(i));
+                    missing.add(volumes.get(i));
+                }
+            }
 
-            // Set up the vtkImageData
-            final vtkImageData image = new vtkImageData();
-            image.SetDimensions((int)m_dimDepth[x], (int)m_dimDepth[y], (int)m_dimDepth[z]);
-            image.SetOrigin(0.0, 0.0, 0.0);
-            image.SetSpacing(spacingX, spacingY, spacingZ);
-            image.SetScalarTypeToShort();
-            image.AllocateScalars();
+            if (!missing.isEmpty()) {
+                final Viewer3DNodeDiskCache.Writer[] writers = new Viewer3DNodeDiskCache.Writer[missing.size()];
+                for (int v = 0; v < writers.length; v++) {
+                    writers[v] = m_diskCache.create(getContentHash(), describe(missing.get(v)), m_scalarType);
+                }
+                try {
+                    fillImages(missingImages, missing, shrink, writers);
+                } catch (final RuntimeException e) {
+                    // e.g. cancelled before the conversion started, the entries are incomplete anyway
+                    for (final Viewer3DNodeDiskCache.Writer w : writers) {
+                        if (w != null) {
+                            w.abort();
+                        }
+                    }
+                    throw e;
+                }
+            }
+        } else {
+            fillImages(images, volumes, shrink, null);
+        }
 
-            image.GetPointData().SetScalars(buildArray(volume));
+        // Store the result for caching purposes
+        if (m_caching && (shrink == 1)) {
+            for (int i = 0; i < volumes.size(); i++) {
+                m_createdImages.put(volumes.get(i).getKey(), images.get(i));
+            }
+        }
+    }
 
-            // pack the image
-            result = image;
+    /**
+     * Get the vtkImageData for several volumes, all volumes that have not been cached are converted in one sweep.
+     *
+     * @param volumes the volumes, they must all display the same axes
+     * @return the images, in the order of the volumes
+     * @throws CancellationException if the calling thread is interrupted during the conversion
+     * @see #fillVTKImageData(List, List, int)
+     */
+    public final List<vtkImageData> getVTKImageData(final List<Viewer3DNodeAxes.Volume> volumes) {
+
+        final List<vtkImageData> result = new ArrayList<vtkImageData>(volumes.size());
+
+        final List<vtkImageData> created = new ArrayList<vtkImageData>();
+        final List<Viewer3DNodeAxes.Volume> missing = new ArrayList<Viewer3DNodeAxes.Volume>();
+
+        for (final Viewer3DNodeAxes.Volume v : volumes) {
+            vtkImageData image = m_caching ? m_createdImages.get(v.getKey()) : null;
+            if (image == null) {
+                image = createVTKImageData(v);
+                created.add(image);
+                missing.add(v);
+            }
+            result.add(image);
+        }
 
-            // Store the result for caching purposes
-            if (m_caching) {
-                m_createdImages.put(store, result);
+        try {
+            fillVTKImageData(created, missing, 1);
+        } catch (final CancellationException e) {
+            for (final vtkImageData i : created) {
+                i.Delete();
             }
+            throw e;
         }
 
         return result;
     }
 
     /**
-     * This method builds the array that holds the image data.
+     * The number of voxels along an axis of the given length, if only every shrink-th voxel is taken.
+     */
+    private static int shrunk(final long length, final int shrink) {
+        return (int)(((length - 1) / shrink) + 1);
+    }
+
+    /**
+     * This method fills the scalars of allocated images with the data of volumes that display the same axes.<br>
      *
-     * @param volume the volume to extract
-     * @return the data in form of a vtkDataArray
+     * The volumes are converted in chunks of slices, which together take at most CHUNK_BYTES. Each chunk is copied
+     * into the native memory of the images as soon as it is done. So the java heap only ever holds one chunk, no
+     * matter how big the volumes are.<br>
+     *
+     * Within a chunk the slices are ordered by slice first and by volume second, so that the same slice of all volumes
+     * is converted together. If a pool has been set, the slices of a chunk are filled in parallel on that pool,
+     * otherwise everything is done on the calling thread. The result is the same in both cases.
+     *
+     * @param images the images to fill, their scalars must already be allocated
+     * @param volumes the volumes to extract
+     * @param shrink take only every shrink-th voxel along each axis
+     * @param writers the entries of the disk cache to write the volumes to, null or with null entries to write none
      */
-    private vtkDataArray buildArray(final Viewer3DNodeAxes.Volume volume) {
+    private void fillImages(final List<vtkImageData> images, final List<Viewer3DNodeAxes.Volume> volumes,
+                            final int shrink, final Viewer3DNodeDiskCache.Writer[] writers) {
 
-        final List<Viewer3DNodeAxis> displayed = volume.getDisplayed();
-        final List<Viewer3DNodeAxis> hidden = volume.getHidden();
+        final int n = volumes.size();
+        final List<Viewer3DNodeAxis> displayed = volumes.get(0).getDisplayed();
 
         // the axes of the image
         final int xDim = m_dimensionMap.get(displayed.get(0).getLabel()).intValue();
         final int yDim = m_dimensionMap.get(displayed.get(1).getLabel()).intValue();
         final int zDim = m_dimensionMap.get(displayed.get(2).getLabel()).intValue();
+        final int[] dims = new int[]{xDim, yDim, zDim};
+
+        final int width = shrunk(m_dimDepth[xDim], shrink);
+        final int height = shrunk(m_dimDepth[yDim], shrink);
+        final int depth = shrunk(m_dimDepth[zDim], shrink);
+        final long numDataPoints = (long)width * height * depth * n;
+
+        // the position of every volume in the hidden dimensions
+        final long[][] positions = new long[n][];
+        final double[][] windows = new double[n][];
+        for (int v = 0; v < n; v++) {
+            final Viewer3DNodeAxes.Volume volume = volumes.get(v);
+            for (int d = 0; d < dims.length; d++) {
+                if (!volume.getDisplayed().get(d).getLabel().equals(displayed.get(d).getLabel())) {
+                    throw new IllegalArgumentException("All volumes must display the same axes!");
+                }
+            }
+
+            // array to set position of cursor
+            final long[] pos = new long[m_numDimensions];
 
-        // create the array to be pushed into the vtkobject
-        final long numDataPoints = m_dimDepth[xDim] * m_dimDepth[yDim] * m_dimDepth[zDim];
-        final short[] data = new short[(int)numDataPoints];
+            // set the depths of the extra dimensions
+            final List<Viewer3DNodeAxis> hidden = volume.getHidden();
+            for (int i = 0; i < hidden.size(); i++) {
+                final int dim = m_dimensionMap.get(hidden.get(i).getLabel()).intValue();
+                pos[dim] = volume.getDepth(hidden.get(i));
+            }
+
+            positions[v] = pos;
+            windows[v] = m_mode == Mode.WINDOW ? getWindow(volume, dims, pos) : null;
+        }
 
-        // array to set position of cursor
-        final long[] pos = new long[m_numDimensions];
-        for (int i = 0; i < pos.length; i++) {
-            pos[i] = 0;
+        // the statistics and the brick summaries are gathered from the converted values while they are still in the
+        // cache
+        final Viewer3DNodeImageStatistics.Accumulator[] accumulators = new Viewer3DNodeImageStatistics.Accumulator[n];
+        for (int v = 0; v < n; v++) {
+            if (m_scalarType == Viewer3DNodeScalarType.FLOAT) {
+                // float values are counted in bins over their range, which is found in the same pass
+                accumulators[v] = new Viewer3DNodeImageStatistics.Accumulator(m_scalarType, m_histogramBins);
+            } else {
+                accumulators[v] = new Viewer3DNodeImageStatistics.Accumulator(m_scalarType);
+            }
         }
 
-        // set the depths of the extra dimensions
-        for (int i = 0; i < hidden.size(); i++) {
-            final int dim = m_dimensionMap.get(hidden.get(i).getLabel()).intValue();
-            pos[dim] = volume.getDepth(hidden.get(i));
+        final Viewer3DNodeBrickSummary.Builder[] bricks = new Viewer3DNodeBrickSummary.Builder[n];
+        for (int v = 0; v < n; v++) {
+            bricks[v] = new Viewer3DNodeBrickSummary.Builder(m_scalarType, width, height, depth);
         }
 
-        // TODO: Check weather VTK viewer also works in byte type
-        // use this to convert the values to something not taking too much
-        // memory
+        final LoadProgress progress = new LoadProgress(numDataPoints, shrink == 1);
+
+        final Viewer3DNodeImageStatistics[] statistics = new Viewer3DNodeImageStatistics[n];
+        try {
+            fillChunks(images, dims, positions, windows, accumulators, bricks, progress, shrink, writers);
+            for (int v = 0; v < n; v++) {
+                statistics[v] = accumulators[v].finish(bricks[v].finish());
+                m_statistics.put(images.get(v), statistics[v]);
+            }
+        } finally {
+            if (writers != null) {
+                for (int v = 0; v < n; v++) {
+                    finishDiskEntry(writers[v], statistics[v]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert the volumes chunk by chunk, see {@link #fillImages(List, List, int, Viewer3DNodeDiskCache.Writer[])}.
+     */
+    private void fillChunks(final List<vtkImageData> images, final int[] dims, final long[][] positions,
+                            final double[][] windows, final Viewer3DNodeImageStatistics.Accumulator[] accumulators,
+                            final Viewer3DNodeBrickSummary.Builder[] bricks, final LoadProgress progress,
+                            final int shrink, final Viewer3DNodeDiskCache.Writer[] writers) {
+        final int n = images.size();
+        final int width = shrunk(m_dimDepth[dims[0]], shrink);
+        final int height = shrunk(m_dimDepth[dims[1]], shrink);
+        final int depth = shrunk(m_dimDepth[dims[2]], shrink);
+
+        final long sliceBytes = (long)width * height * m_scalarType.getSize() * n;
+        final int chunkDepth = (int)Math.max(1, Math.min(depth, CHUNK_BYTES / Math.max(1, sliceBytes)));
+
+        for (int zStart = 0; zStart < depth; zStart += chunkDepth) {
+            final int chunkStart = zStart;
+            final int chunkEnd = Math.min(depth, zStart + chunkDepth);
+
+            final Object[] data = new Object[n];
+            for (int v = 0; v < n; v++) {
+                data[v] = m_scalarType.allocate(width * height * (chunkEnd - chunkStart));
+            }
+
+            // slice i of the chunk is slice chunkStart + i / n of volume i % n
+            forEachSlab(new SlabOperation() {
+                @Override
+                public void run(final int slabStart, final int slabEnd) {
+                    int i = slabStart;
+                    while (i < slabEnd) {
+                        final int v = i % n;
+                        final int z = chunkStart + (i / n);
+
+                        // with a single volume consecutive slices can be filled at once
+                        final int zEnd = n == 1 ? chunkStart + slabEnd : z + 1;
+
+                        if (shrink == 1) {
+                            fillSlab(data[v], chunkStart, dims, positions[v], z, zEnd, windows[v], progress);
+                        } else {
+                            fillSampledSlab(data[v], chunkStart, dims, positions[v], shrink, z, zEnd, windows[v],
+                                            progress);
+                        }
+                        accumulators[v].add(data[v], (z - chunkStart) * width * height, (zEnd - z) * width * height);
+                        bricks[v].add(data[v], (z - chunkStart) * width * height, z, zEnd);
+
+                        i += (zEnd - z) * n;
+                    }
+                }
+            }, 0, (chunkEnd - chunkStart) * n);
+
+            for (int v = 0; v < n; v++) {
+                copyChunk(images.get(v), data[v], chunkStart, chunkEnd);
+                if ((writers != null) && (writers[v] != null)) {
+                    try {
+                        writers[v].write(data[v], width * height * (chunkEnd - chunkStart));
+                    } catch (final IOException e) {
+                        LOGGER.debug("Could not write a volume to the disk cache", e);
+                        writers[v].abort();
+                        writers[v] = null;
+                    }
+                }
+            }
+            m_eventService.publish(new LoadSlabsEvent(chunkStart, chunkEnd, depth));
+        }
+    }
+
+    /**
+     * Complete an entry of the disk cache, or give it up if the volume has not been converted completely.
+     */
+    private static void finishDiskEntry(final Viewer3DNodeDiskCache.Writer writer,
+                                        final Viewer3DNodeImageStatistics statistics) {
+        if (writer == null) {
+            return;
+        }
+
+        if (statistics == null) {
+            writer.abort();
+            return;
+        }
+
+        try {
+            writer.finish(statistics);
+        } catch (final IOException e) {
+            LOGGER.debug("Could not write a volume to the disk cache", e);
+        }
+    }
+
+    /**
+     * Fill an image with the voxels of a volume that has been converted before, if the disk cache has them.<br>
+     *
+     * The voxels are copied chunk by chunk like a conversion, and a {@link LoadSlabsEvent} is published after each
+     * chunk.
+     *
+     * @return whether the image has been filled
+     * @throws CancellationException if the calling thread is interrupted
+     */
+    private boolean readFromDisk(final vtkImageData image, final Viewer3DNodeAxes.Volume volume) {
+        final int[] dimensions = image.GetDimensions();
+        final int sliceSize = dimensions[0] * dimensions[1];
+        final int depth = dimensions[2];
+
+        final Viewer3DNodeDiskCache.Reader reader =
+                m_diskCache.open(getContentHash(), describe(volume), m_scalarType, (long)sliceSize * depth);
+        if (reader == null) {
+            return false;
+        }
+
+        try {
+            final long sliceBytes = (long)sliceSize * m_scalarType.getSize();
+            final int chunkDepth = (int)Math.max(1, Math.min(depth, CHUNK_BYTES / Math.max(1, sliceBytes)));
+
+            for (int chunkStart = 0; chunkStart < depth; chunkStart += chunkDepth) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The conversion has been cancelled!");
+                }
+
+                final int chunkEnd = Math.min(depth, chunkStart + chunkDepth);
+                final Object data = m_scalarType.allocate(sliceSize * (chunkEnd - chunkStart));
+                reader.read(data, sliceSize * (chunkEnd - chunkStart));
+                copyChunk(image, data, chunkStart, chunkEnd);
+
+                m_eventService.publish(new LoadSlabsEvent(chunkStart, chunkEnd, depth));
+            }
+        } catch (final IOException e) {
+            // the image is converted instead, which overwrites whatever has been read
+            LOGGER.debug("Could not read a volume from the disk cache", e);
+            return false;
+        } finally {
+            reader.close();
+        }
+
+        m_statistics.put(image, reader.getStatistics());
+        return true;
+    }
+
+    /**
+     * Describe how a volume is converted, everything but the values of the image that changes the result.
+     */
+    private String describe(final Viewer3DNodeAxes.Volume volume) {
+        final StringBuilder sb = new StringBuilder(volume.getKey().toString());
+        for (final Viewer3DNodeAxis a : volume.getDisplayed()) {
+            sb.append(';').append(a.getLabel());
+        }
+        sb.append(";type=").append(m_scalarType);
+        sb.append(";mode=").append(m_mode);
+        sb.append(";bins=").append(m_histogramBins);
+        return sb.toString();
+    }
+
+    /**
+     * Get a hash of the name, source, dimensions and pixel type of the image, and of values sampled evenly from it.
+     * Hashing all values would take about as long as the conversion a cache hit saves.
+     */
+    private synchronized long getContentHash() {
+        if (m_contentHash == null) {
+            final long prime = 0x100000001b3L;
+            long hash = 0xcbf29ce484222325L;
+
+            final String identity =
+                    m_image.firstElement().getClass().getName() + Arrays.toString(m_dimDepth) + ';'
+                            + m_image.getName() + ';' + m_image.getSource();
+            for (int i = 0; i < identity.length(); i++) {
+                hash = (hash ^ identity.charAt(i)) * prime;
+            }
+
+            long size = 1;
+            for (final long d : m_dimDepth) {
+                size *= d;
+            }
+            final long samples = Math.min(size, CONTENT_SAMPLES);
+
+            final RandomAccess<T> ra = m_image.randomAccess();
+            for (long n = 0; n < samples; n++) {
+                // spread over the whole image, the first and the last value included
+                long index = samples > 1 ? (long)(((double)n * (size - 1)) / (samples - 1)) : 0;
+                for (int d = 0; d < m_dimDepth.length; d++) {
+                    ra.setPosition(m_image.min(d) + (index % m_dimDepth[d]), d);
+                    index /= m_dimDepth[d];
+                }
+                hash = (hash ^ Double.doubleToLongBits(ra.get().getRealDouble())) * prime;
+            }
+
+            m_contentHash = Long.valueOf(hash);
+        }
+        return m_contentHash.longValue();
+    }
+
+    /**
+     * Copy a converted chunk into the native scalars of the image.
+     *
+     * @param image the image to copy to
+     * @param data the values of the chunk, ordered x, y, z
+     * @param zStart the first slice of the chunk
+     * @param zEnd the slice after the last one of the chunk
+     */
+    private void copyChunk(final vtkImageData image, final Object data, final int zStart, final int zEnd) {
+        final int[] dimensions = image.GetDimensions();
+        final int[] extent = new int[]{0, dimensions[0] - 1, 0, dimensions[1] - 1, zStart, zEnd - 1};
+
+        // a temporary image that covers the slices of the chunk
+        final vtkImageData chunk = new vtkImageData();
+        chunk.SetExtent(extent);
+        m_scalarType.setOn(chunk);
+        final vtkDataArray array = m_scalarType.wrap(data);
+        chunk.GetPointData().SetScalars(array);
+
+        image.CopyAndCastFrom(chunk, extent);
+
+        chunk.Delete();
+        array.Delete();
+    }
+
+    /**
+     * Run an operation on all slabs of the slices [zStart, zEnd), in parallel if a pool has been set.<br>
+     *
+     * Before each slab is processed the calling thread is checked for an interruption, so that a conversion can be
+     * aborted by interrupting the thread that started it.
+     *
+     * @param operation the operation
+     * @param zStart the first slice
+     * @param zEnd the slice after the last one
+     * @throws CancellationException if the calling thread has been interrupted
+     */
+    private void forEachSlab(final SlabOperation operation, final int zStart, final int zEnd) {
+        final Thread caller = Thread.currentThread();
+        final SlabOperation checked = new SlabOperation() {
+            @Override
+            public void run(final int slabStart, final int slabEnd) {
+                if (caller.isInterrupted()) {
+                    throw new CancellationException("The conversion has been cancelled!");
+                }
+                operation.run(slabStart, slabEnd);
+            }
+        };
+
+        if (m_pool == null) {
+            for (int z = zStart; z < zEnd; z += SLAB_DEPTH) {
+                checked.run(z, Math.min(zEnd, z + SLAB_DEPTH));
+            }
+        } else {
+            m_pool.invoke(new SlabTask(checked, zStart, zEnd));
+        }
+    }
+
+    /**
+     * Get the window a volume is requantized from, the window is only searched once per volume.
+     */
+    private double[] getWindow(final Viewer3DNodeAxes.Volume volume, final int[] dims, final long[] hiddenPos) {
+        final Viewer3DNodeAxes.VolumeKey key = volume.getKey();
+        double[] window = m_windows.get(key);
+        if (window == null) {
+            window = findWindow(dims, hiddenPos, (int)m_dimDepth[dims[2]]);
+            m_windows.put(key, window);
+        }
+        return window;
+    }
+
+    /**
+     * Find the range of the finite values in a volume, used to requantize float images.
+     *
+     * @param dims the image dimensions of the x, y and z axis of the volume
+     * @param hiddenPos the position of the volume in all hidden dimensions
+     * @param depth the number of slices of the volume
+     * @return the minimum and the maximum
+     */
+    private double[] findWindow(final int[] dims, final long[] hiddenPos, final int depth) {
+        final double[] window = new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+        forEachSlab(new SlabOperation() {
+            @Override
+            public void run(final int zStart, final int zEnd) {
+                final int width = (int)m_dimDepth[dims[0]];
+                final int rows = (int)m_dimDepth[dims[1]] * (zEnd - zStart);
+
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+
+                if (m_storage != null) {
+                    final float[] row = new float[width];
+                    final long[] pos = Arrays.copyOf(hiddenPos, hiddenPos.length);
+                    for (int z = zStart; z < zEnd; z++) {
+                        pos[dims[2]] = z;
+                        for (int y = 0; y < m_dimDepth[dims[1]]; y++) {
+                            pos[dims[1]] = y;
+                            m_storage.copyRow(pos, dims[0], width, row, 0);
+                            for (final float v : row) {
+                                if ((v < min) && !Float.isInfinite(v)) {
+                                    min = v;
+                                }
+                                if ((v > max) && !Float.isInfinite(v)) {
+                                    max = v;
+                                }
+                            }
+                        }
+                    }
+                } else {
+                    final SlabReader reader = new SlabReader(dims, hiddenPos, zStart, zEnd);
+                    for (long i = (long)rows * width; i > 0; i--) {
+                        final double v = reader.next().getRealDouble();
+                        if ((v < min) && !Double.isInfinite(v)) {
+                            min = v;
+                        }
+                        if ((v > max) && !Double.isInfinite(v)) {
+                            max = v;
+                        }
+                    }
+                }
+
+                synchronized (window) {
+                    window[0] = Math.min(window[0], min);
+                    window[1] = Math.max(window[1], max);
+                }
+            }
+        }, 0, depth);
+
+        // empty or constant volumes map everything onto the first level
+        if (window[0] > window[1]) {
+            window[0] = 0;
+            window[1] = 0;
+        }
+
+        return window;
+    }
+
+    /**
+     * Fill the slices [zStart, zEnd) of the data array.<br>
+     *
+     * Every call uses its own converter and accessors, so that disjoint slabs can be filled concurrently.
+     *
+     * @param data the array to fill, ordered x, y, z
+     * @param zOrigin the slice that is stored first in the data array
+     * @param dims the image dimensions of the x, y and z axis of the volume
+     * @param hiddenPos the position of the volume in all hidden dimensions
+     * @param zStart the first slice to fill
+     * @param zEnd the slice after the last one to fill
+     * @param window the range to requantize from, only used in the window mode
+     * @param progress the progress to advance
+     */
+    private void fillSlab(final Object data, final int zOrigin, final int[] dims, final long[] hiddenPos,
+                          final int zStart, final int zEnd, final double[] window, final LoadProgress progress) {
+
+        if (m_storage != null) {
+            fillSlabFromStorage(data, zOrigin, dims, hiddenPos, zStart, zEnd, window, progress);
+            return;
+        }
+
+        final int width = (int)m_dimDepth[dims[0]];
+        final int height = (int)m_dimDepth[dims[1]];
+        int count = (zStart - zOrigin) * width * height;
+
+        final SlabReader reader = new SlabReader(dims, hiddenPos, zStart, zEnd);
+
+        if (m_mode == Mode.SCALED) {
+            // use this to convert the values to something not taking too much
+            // memory
+            final short[] shorts = (short[])data;
+            final ShortType tmp = new ShortType();
+            final Convert<T, ShortType> convert =
+                    new Convert<T, ShortType>(m_image.firstElement().createVariable(), tmp,
+                            TypeConversionTypes.SCALE);
+
+            for (int row = 0; row < (height * (zEnd - zStart)); row++) {
+                for (int x = 0; x < width; x++) {
+                    shorts[count++] = convert.compute(reader.next(), tmp).get();
+                }
+                progress.advance(width);
+            }
+        } else {
+            final double[] values = new double[width];
+            for (int row = 0; row < (height * (zEnd - zStart)); row++) {
+                for (int x = 0; x < width; x++) {
+                    values[x] = reader.next().getRealDouble();
+                }
+                writeRow(values, data, count, window);
+                count += width;
+                progress.advance(width);
+            }
+        }
+    }
+
+    /**
+     * Fill the slices [zStart, zEnd) of the data array of a lower resolution, taking every shrink-th voxel of the
+     * image along each axis.
+     *
+     * @param data the array to fill, ordered x, y, z
+     * @param zOrigin the slice that is stored first in the data array
+     * @param dims the image dimensions of the x, y and z axis of the volume
+     * @param hiddenPos the position of the volume in all hidden dimensions
+     * @param shrink the factor the resolution is reduced by
+     * @param zStart the first slice of the lower resolution to fill
+     * @param zEnd the slice after the last one to fill
+     * @param window the range to requantize from, only used in the window mode
+     * @param progress the progress to advance
+     */
+    private void fillSampledSlab(final Object data, final int zOrigin, final int[] dims, final long[] hiddenPos,
+                                 final int shrink, final int zStart, final int zEnd, final double[] window,
+                                 final LoadProgress progress) {
+
+        final int width = shrunk(m_dimDepth[dims[0]], shrink);
+        final int height = shrunk(m_dimDepth[dims[1]], shrink);
+        int count = (zStart - zOrigin) * width * height;
+
+        final RandomAccess<T> ra = m_image.randomAccess();
+        final long[] pos = Arrays.copyOf(hiddenPos, hiddenPos.length);
+
         final ShortType tmp = new ShortType();
         final Convert<T, ShortType> convert =
                 new Convert<T, ShortType>(m_image.firstElement().createVariable(), tmp, TypeConversionTypes.SCALE);
-        int count = 0;
-        final int step = (int)(m_dimDepth[zDim] * m_dimDepth[yDim] * m_dimDepth[xDim]) / 100;
-
-        if (m_image.iterationOrder().equals(new FlatIterationOrder(m_image))) {
-            final long[] max = Arrays.copyOf(pos, pos.length);
-            max[xDim] = m_dimDepth[xDim] - 1;
-            max[yDim] = m_dimDepth[yDim] - 1;
-            max[zDim] = m_dimDepth[zDim] - 1;
-
-            final Interval interval = new FinalInterval(pos, max);
-            final Img<T> view = new ImgView<T>(Views.interval(m_image, interval), m_image.factory());
-
-            final Cursor<T> cursor = view.localizingCursor();
-            while (cursor.hasNext()) {
-                cursor.fwd();
-                data[count++] = convert.compute(cursor.get(), tmp).get();
-                if ((count % step) == 100) {
-                    m_eventService.publish(new LoadImageEvent(count / step));
+        final double[] values = new double[width];
+
+        for (int z = zStart; z < zEnd; z++) {
+            pos[dims[2]] = (long)z * shrink;
+            for (int y = 0; y < height; y++) {
+                pos[dims[1]] = (long)y * shrink;
+                for (int x = 0; x < width; x++) {
+                    pos[dims[0]] = (long)x * shrink;
+                    ra.setPosition(pos);
+                    if (m_mode == Mode.SCALED) {
+                        ((short[])data)[count + x] = convert.compute(ra.get(), tmp).get();
+                    } else {
+                        values[x] = ra.get().getRealDouble();
+                    }
                 }
+                if (m_mode != Mode.SCALED) {
+                    writeRow(values, data, count, window);
+                }
+                count += width;
+                progress.advance(width);
             }
-        } else {
-            final RandomAccess<T> ra = m_image.randomAccess();
-            for (int z = 0; z < (int)m_dimDepth[zDim]; z++) {
+        }
+    }
+
+    /**
+     * Fill the slices [zStart, zEnd) of the data array by copying rows straight from the storage of the image.<br>
+     *
+     * Rows, planes or the whole slab are copied at once, depending on how many of the axes are laid out consecutively
+     * in the storage.
+     *
+     * @param data the array to fill, ordered x, y, z
+     * @param zOrigin the slice that is stored first in the data array
+     * @param dims the image dimensions of the x, y and z axis of the volume
+     * @param hiddenPos the position of the volume in all hidden dimensions
+     * @param zStart the first slice to fill
+     * @param zEnd the slice after the last one to fill
+     * @param window the range to requantize from, only used in the window mode
+     * @param progress the progress to advance
+     */
+    private void fillSlabFromStorage(final Object data, final int zOrigin, final int[] dims, final long[] hiddenPos,
+                                     final int zStart, final int zEnd, final double[] window,
+                                     final LoadProgress progress) {
+        final int xDim = dims[0];
+        final int yDim = dims[1];
+        final int zDim = dims[2];
+
+        final int width = (int)m_dimDepth[xDim];
+        final int height = (int)m_dimDepth[yDim];
+        final int sliceSize = width * height;
+
+        final long[] pos = Arrays.copyOf(hiddenPos, hiddenPos.length);
+        int count = (zStart - zOrigin) * sliceSize;
+
+        if (m_storage.getKind() == Viewer3DNodeImageStorage.Kind.FLOAT && (m_mode != Mode.RAW)) {
+            // floats can not be looked up, convert them row by row
+            final float[] row = new float[width];
+            final double[] values = new double[width];
+            final T in = m_image.firstElement().createVariable();
+            final ShortType tmp = new ShortType();
+            final Convert<T, ShortType> convert = new Convert<T, ShortType>(in, tmp, TypeConversionTypes.SCALE);
+
+            for (int z = zStart; z < zEnd; z++) {
                 pos[zDim] = z;
-                for (int y = 0; y < (int)m_dimDepth[yDim]; y++) {
+                for (int y = 0; y < height; y++) {
                     pos[yDim] = y;
-                    for (int x = 0; x < (int)m_dimDepth[xDim]; x++) {
-                        pos[xDim] = x;
-                        ra.setPosition(pos);
-                        data[count++] = convert.compute(ra.get(), tmp).get();
-
-                        if ((count % step) == 100) {
-                            m_eventService.publish(new LoadImageEvent(count / step));
+                    m_storage.copyRow(pos, xDim, width, row, 0);
+                    if (m_mode == Mode.SCALED) {
+                        final short[] shorts = (short[])data;
+                        for (int x = 0; x < width; x++) {
+                            in.setReal(row[x]);
+                            shorts[count + x] = convert.compute(in, tmp).get();
                         }
+                    } else {
+                        for (int x = 0; x < width; x++) {
+                            values[x] = row[x];
+                        }
+                        writeRow(values, data, count, window);
                     }
+                    count += width;
+                    progress.advance(width);
+                }
+            }
+        } else if (m_storage.isContiguous(xDim, 1) && m_storage.isContiguous(yDim, width)) {
+            if (m_storage.isContiguous(zDim, sliceSize)) {
+                // the whole slab is one block
+                pos[zDim] = zStart;
+                final int length = sliceSize * (zEnd - zStart);
+                copyRow(pos, xDim, length, data, count);
+                progress.advance(length);
+            } else {
+                for (int z = zStart; z < zEnd; z++) {
+                    pos[zDim] = z;
+                    copyRow(pos, xDim, sliceSize, data, count);
+                    count += sliceSize;
+                    progress.advance(sliceSize);
+                }
+            }
+        } else {
+            for (int z = zStart; z < zEnd; z++) {
+                pos[zDim] = z;
+                for (int y = 0; y < height; y++) {
+                    pos[yDim] = y;
+                    copyRow(pos, xDim, width, data, count);
+                    count += width;
+                    progress.advance(width);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy a row from the storage, either scaling it through the lookup table or as it is.
+     */
+    private void copyRow(final long[] pos, final int dim, final int length, final Object data, final int offset) {
+        if (m_mode == Mode.SCALED) {
+            m_storage.copyRow(pos, dim, length, m_lut, (short[])data, offset);
+        } else {
+            m_storage.copyRow(pos, dim, length, data, offset);
+        }
+    }
+
+    /**
+     * Write a row of values into the data array, either as they are or mapped from the window onto the scalar type.
+     *
+     * @param values the values
+     * @param data the array to write to
+     * @param offset the first index to write to
+     * @param window the range to requantize from, only used in the window mode
+     */
+    private void writeRow(final double[] values, final Object data, final int offset, final double[] window) {
+        if (m_mode == Mode.WINDOW) {
+            final double max = m_scalarType.getMax();
+            final double scale = window[1] > window[0] ? max / (window[1] - window[0]) : 0;
+            for (int i = 0; i < values.length; i++) {
+                // NaN ends up at 0
+                double q = ((values[i] - window[0]) * scale) + 0.5;
+                q = q < 0 ? 0 : (q > max ? max : q);
+                if (m_scalarType == Viewer3DNodeScalarType.UNSIGNED_CHAR) {
+                    ((byte[])data)[offset + i] = (byte)(int)q;
+                } else {
+                    ((short[])data)[offset + i] = (short)(int)q;
                 }
             }
+            return;
         }
 
-        final vtkTypeInt16Array array = new vtkTypeInt16Array();
-        array.SetJavaArray(data);
+        switch (m_scalarType) {
+            case UNSIGNED_CHAR:
+                final byte[] bytes = (byte[])data;
+                for (int i = 0; i < values.length; i++) {
+                    bytes[offset + i] = (byte)(int)values[i];
+                }
+                break;
+            case FLOAT:
+                final float[] floats = (float[])data;
+                for (int i = 0; i < values.length; i++) {
+                    floats[offset + i] = (float)values[i];
+                }
+                break;
+            default:
+                final short[] shorts = (short[])data;
+                for (int i = 0; i < values.length; i++) {
+                    shorts[offset + i] = (short)(int)values[i];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Get the statistics of the values of an image, which have been gathered while it was filled.
+     *
+     * @param image an image filled by this converter
+     * @return the statistics, or {@code null} if the image has not been filled completely by this converter
+     */
+    public final Viewer3DNodeImageStatistics getStatistics(final vtkImageData image) {
+        return m_statistics.get(image);
+    }
 
-        return array;
+    /**
+     * Set the number of bins the histogram of float images is gathered in.<br>
+     *
+     * The histogram is only exact for the same number of bins, integer images are not affected.
+     *
+     * @param bins the number of bins
+     */
+    public final void setHistogramBins(final int bins) {
+        if (bins < 1) {
+            throw new IllegalArgumentException("There must be at least one bin!");
+        }
+        m_histogramBins = bins;
+    }
+
+    /**
+     * Gets the number of bins the histogram of float images is gathered in.
+     *
+     * @return the number of bins
+     */
+    public final int getHistogramBins() {
+        return m_histogramBins;
+    }
+
+    /**
+     * Set the cache on disk that keeps the converted volumes, so that they are only converted once.<br>
+     *
+     * Only images of the full resolution are written to it and read from it. Computing the key of the image reads all
+     * its values once.
+     *
+     * @param cache the cache, or {@code null} to convert every volume
+     */
+    public final void setDiskCache(final Viewer3DNodeDiskCache cache) {
+        m_diskCache = cache;
+    }
+
+    /**
+     * Gets the cache on disk that keeps the converted volumes.
+     *
+     * @return the cache, or {@code null} if there is none
+     */
+    public final Viewer3DNodeDiskCache getDiskCache() {
+        return m_diskCache;
+    }
+
+    /**
+     * Set the pool on which the volumes are converted in parallel.<br>
+     *
+     * Every volume is split into slabs along its z axis which are then filled concurrently.
+     *
+     * @param pool the pool to use, or {@code null} to convert on the calling thread
+     */
+    public final void setForkJoinPool(final ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    /**
+     * Gets the pool used for the parallel conversion.
+     *
+     * @return The pool, {@code null} if the conversion is done on the calling thread.
+     */
+    public final ForkJoinPool getForkJoinPool() {
+        return m_pool;
     }
 
     /**
@@ -0,0 +1,191 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import vtk.vtkDataArray;
+import vtk.vtkFloatArray;
+import vtk.vtkImageData;
+import vtk.vtkTypeInt16Array;
+import vtk.vtkUnsignedCharArray;
+import vtk.vtkUnsignedShortArray;
+
+/**
+ * The scalar types a vtkImageData created from an image can have.<br>
+ *
+ * Each type knows the java array that holds its voxels and how to hand that array over to vtk.
+ *
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+enum Viewer3DNodeScalarType {
+
+    /**
+     * 8 bit unsigned, held in a byte[].
+     */
+    UNSIGNED_CHAR(1, 0, 255),
+    /**
+     * 16 bit signed, held in a short[].
+     */
+    SHORT(2, Short.MIN_VALUE, Short.MAX_VALUE),
+    /**
+     * 16 bit unsigned, held in a short[].
+     */
+    UNSIGNED_SHORT(2, 0, 65535),
+    /**
+     * 32 bit float, held in a float[].
+     */
+    FLOAT(4, -Float.MAX_VALUE, Float.MAX_VALUE);
+
+    private final int m_size;
+
+    private final double m_min;
+
+    private final double m_max;
+
+    private Viewer3DNodeScalarType(final int size, final double min, final double max) {
+        m_size = size;
+        m_min = min;
+        m_max = max;
+    }
+
+    /**
+     * Get the number of bytes one voxel of this type occupies.
+     *
+     * @return the size in bytes
+     */
+    int getSize() {
+        return m_size;
+    }
+
+    /**
+     * Get the smallest value this type can hold.
+     *
+     * @return the minimum
+     */
+    double getMin() {
+        return m_min;
+    }
+
+    /**
+     * Get the largest value this type can hold.
+     *
+     * @return the maximum
+     */
+    double getMax() {
+        return m_max;
+    }
+
+    /**
+     * Create a java array for the given number of voxels.
+     *
+     * @param size the number of voxels
+     * @return the new array
+     */
+    Object allocate(final int size) {
+        switch (this) {
+            case UNSIGNED_CHAR:
+                return new byte[size];
+            case FLOAT:
+                return new float[size];
+            default:
+                return new short[size];
+        }
+    }
+
+    /**
+     * Copy a java array created by {@link #allocate(int)} into a new vtkDataArray of this type.
+     *
+     * @param data the java array
+     * @return the vtk array
+     */
+    vtkDataArray wrap(final Object data) {
+        switch (this) {
+            case UNSIGNED_CHAR:
+                final vtkUnsignedCharArray chars = new vtkUnsignedCharArray();
+                chars.SetJavaArray((byte[])data);
+                return chars;
+            case UNSIGNED_SHORT:
+                final vtkUnsignedShortArray ushorts = new vtkUnsignedShortArray();
+                ushorts.SetJavaArray((short[])data);
+                return ushorts;
+            case FLOAT:
+                final vtkFloatArray floats = new vtkFloatArray();
+                floats.SetJavaArray((float[])data);
+                return floats;
+            default:
+                final vtkTypeInt16Array shorts = new vtkTypeInt16Array();
+                shorts.SetJavaArray((short[])data);
+                return shorts;
+        }
+    }
+
+    /**
+     * Set this type as the scalar type of an image.
+     *
+     * @param image the image
+     */
+    void setOn(final vtkImageData image) {
+        switch (this) {
+            case UNSIGNED_CHAR:
+                image.SetScalarTypeToUnsignedChar();
+                break;
+            case UNSIGNED_SHORT:
+                image.SetScalarTypeToUnsignedShort();
+                break;
+            case FLOAT:
+                image.SetScalarTypeToFloat();
+                break;
+            default:
+                image.SetScalarTypeToShort();
+                break;
+        }
+    }
+}
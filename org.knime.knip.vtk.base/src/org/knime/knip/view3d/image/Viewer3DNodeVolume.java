@@ -48,6 +48,18 @@
  */
 package org.knime.knip.view3d.image;
 
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
 import org.knime.core.node.NodeLogger;
 import org.knime.knip.core.ui.imgviewer.panels.transfunc.HistogramWithNormalization;
 import org.knime.knip.core.ui.imgviewer.panels.transfunc.PolylineTransferFunction;
@@ -58,31 +70,34 @@ import org.knime.knip.core.ui.imgviewer.panels.transfunc.TransferFunctionColor;
 import vtk.vtkActor;
 import vtk.vtkAlgorithmOutput;
 import vtk.vtkColorTransferFunction;
+import vtk.vtkDecimatePro;
 import vtk.vtkFixedPointVolumeRayCastMapper;
 import vtk.vtkGPUVolumeRayCastMapper;
 import vtk.vtkImageAccumulate;
 import vtk.vtkImageActor;
-import vtk.vtkImageCast;
 import vtk.vtkImageData;
 import vtk.vtkImageMapToColors;
 import vtk.vtkImageReslice;
+import vtk.vtkImageShrink3D;
 import vtk.vtkIntArray;
 import vtk.vtkLookupTable;
 import vtk.vtkMapper;
+import vtk.vtkMarchingCubes;
 import vtk.vtkMatrix4x4;
 import vtk.vtkObject;
 import vtk.vtkOutlineFilter;
 import vtk.vtkPassThrough;
 import vtk.vtkPiecewiseFunction;
 import vtk.vtkPlanes;
+import vtk.vtkPolyData;
 import vtk.vtkPolyDataMapper;
+import vtk.vtkPolyDataNormals;
+import vtk.vtkProp3D;
 import vtk.vtkReferenceInformation;
 import vtk.vtkSmartVolumeMapper;
 import vtk.vtkVolume;
+import vtk.vtkVolumeMapper;
 import vtk.vtkVolumeProperty;
-import vtk.vtkVolumeRayCastIsosurfaceFunction;
-import vtk.vtkVolumeRayCastMapper;
-import vtk.vtkVolumeTextureMapper2D;
 import vtk.vtkVolumeTextureMapper3D;
 
 /**
@@ -114,13 +129,44 @@ public class Viewer3DNodeVolume {
         /**
          * vtkGPUVolumeRayCastMapper.
          */
-        GPU
+        GPU,
+        /**
+         * An isosurface rendered as a vtkActor, see {@link Viewer3DNodeVolume#setSurfaceThreshold(double)}.
+         */
+        SURFACE
     };
 
-    private final vtkImageData m_image;
+    private vtkImageData m_image;
 
     private final vtkPassThrough m_imageWrapper;
 
+    // the input of the volume mappers, differs from m_imageWrapper during an interaction
+    private final vtkPassThrough m_renderWrapper;
+
+    // a coarse version of the image that is rendered during an interaction, may be null
+    private vtkImageData m_interactionImage = null;
+
+    // whether the interaction image has been subsampled from the image, rather than loaded before it
+    private boolean m_subsampled = false;
+
+    // whether an interaction image is being subsampled in the background
+    private boolean m_subsampling = false;
+
+    private boolean m_deleted = false;
+
+    private boolean m_interactive = false;
+
+    // whether the values of the image are still being filled in, from the first updateImage to updateValues
+    private boolean m_streaming = false;
+
+    // a finer version of the image that is waiting to replace the current one
+    private vtkImageData m_pendingImage = null;
+
+    private Viewer3DNodeImageStatistics m_pendingStatistics = null;
+
+    // the statistics of the current image, null if they are not known
+    private volatile Viewer3DNodeImageStatistics m_statistics = null;
+
     private final vtkVolume m_volume;
 
     private final vtkVolumeProperty m_property;
@@ -132,16 +178,46 @@ public class Viewer3DNodeVolume {
 
     private final vtkActor m_boundingBoxActor;
 
-    // all available mappers
-    private final vtkFixedPointVolumeRayCastMapper m_mapperFixedPoint;
+    // the mappers that have been used so far, they are created on first use
+    private final Map<Mapper, vtkVolumeMapper> m_mappers = new EnumMap<Mapper, vtkVolumeMapper>(Mapper.class);
+
+    private Mapper m_mapper = null;
 
-    private final vtkVolumeTextureMapper3D m_mapperTexture3d;
+    // whether a mapper is deleted as soon as another one is used
+    private boolean m_releaseUnusedMappers = false;
 
-    private final vtkSmartVolumeMapper m_mapperSmart;
+    private vtkPlanes m_clippingPlanes = null;
 
-    private final vtkGPUVolumeRayCastMapper m_mapperGPU;
+    // the isosurface, set up when the surface mapper is used first
+    private vtkPolyDataMapper m_surfaceMapper = null;
 
-    private Mapper m_mapper = null;
+    private vtkActor m_surfaceActor = null;
+
+    private vtkPolyData m_shownSurface = null;
+
+    // NaN for the middle of the mapped range
+    private double m_surfaceThreshold = Double.NaN;
+
+    private int m_triangleBudget = DEFAULT_TRIANGLE_BUDGET;
+
+    // the surfaces extracted so far by their thresholds, in access order so that the first one is the least recently
+    // used one
+    private final LinkedHashMap<Double, vtkPolyData> m_surfaces = new LinkedHashMap<Double, vtkPolyData>(16, 0.75f,
+            true);
+
+    // the region of the image the mappers are cropped to in world coordinates, null if they are not cropped
+    private double[] m_cropping = null;
+
+    // what the cropping has been computed from, to skip the work if neither has changed
+    private double[] m_croppedOpacity = null;
+
+    private Viewer3DNodeBrickSummary m_croppedBricks = null;
+
+    // the distance between two samples along a ray at full quality, the default of the mappers
+    private double m_sampleDistance = 1.0;
+
+    // thins out the samples while the renderer trades quality for speed, 1 at full quality
+    private double m_qualityFactor = 1.0;
 
     private TransferFunctionBundle m_bundleGray;
 
@@ -155,7 +231,25 @@ public class Viewer3DNodeVolume {
 
     private final vtkColorTransferFunction m_colorRGB;
 
-    // all reslicers
+    // the points last installed into the opacity functions, positions and opacities alternating
+    private double[] m_opacityPointsGray = null;
+
+    private double[] m_opacityPointsRGB = null;
+
+    // only the functions of the active mode are kept up to date, the other ones are rebuilt when the mode changes
+    private boolean m_grayMode = false;
+
+    private int m_dirtyGray = 0;
+
+    private int m_dirtyRGB = 0;
+
+    // counts the changes of the transfer functions, so that outdated updates are dropped
+    private long m_tfVersion = 0;
+
+    // the volume whose transfer functions are rendered instead of the own ones, if any
+    private Viewer3DNodeVolume m_shared = null;
+
+    // all reslicers, the slice pipeline is only set up once a slice is requested
     private vtkImageReslice m_resliceAxial;
 
     private vtkImageReslice m_resliceCoronal;
@@ -181,6 +275,9 @@ public class Viewer3DNodeVolume {
 
     private final vtkLookupTable m_tableGray;
 
+    // the lookuptable the slices are mapped with, depends on the mode
+    private vtkLookupTable m_tableSlices;
+
     // various settings
     private static final double OPACITY_MAX = 1.0;
 
@@ -190,12 +287,43 @@ public class Viewer3DNodeVolume {
 
     private static final double OPACITY_MULT = 10.0;
 
+    // the number of voxels up to which an image is rendered as it is during an interaction
+    private static final double INTERACTION_VOXELS = 1 << 21;
+
+    // subsamples the interaction images of all volumes, one at a time and off the event dispatch thread
+    private static final ExecutorService SUBSAMPLE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "Viewer3D subsample");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * The number of triangles an isosurface is decimated to by default.
+     */
+    public static final int DEFAULT_TRIANGLE_BUDGET = 500000;
+
+    // the number of isosurfaces that are kept per volume
+    private static final int MAX_SURFACES = 8;
+
+    // the parts of the transfer functions of a mode that can be out of date
+    private static final int DIRTY_OPACITY = 1;
+
+    private static final int DIRTY_COLOR = 2;
+
+    private static final int DIRTY_TABLE = 4;
+
+    private static final int DIRTY_ALL = DIRTY_OPACITY | DIRTY_COLOR | DIRTY_TABLE;
+
     // various thing we now about the image
     private final double[] m_rangeSelected = new double[2];
 
     private final Viewer3DNodeAxes.Volume m_axesVolume;
 
-    private final HistogramWithNormalization m_histogram;
+    private HistogramWithNormalization m_histogram;
 
     // the logger for this class
     private static final NodeLogger LOGGER = NodeLogger.getLogger(Viewer3DNodeVolume.class);
@@ -210,6 +338,23 @@ public class Viewer3DNodeVolume {
      */
     public Viewer3DNodeVolume(final vtkImageData image, final Viewer3DNodeAxes.Volume axes,
                               final TransferFunctionBundle bundleGray, final TransferFunctionBundle bundleRGB) {
+        this(image, axes, bundleGray, bundleRGB, null);
+    }
+
+    /**
+     * Create a new volume, whose range and histogram are taken from statistics that are already known.
+     * 
+     * @param image the vtkImageData
+     * @param axes the Viewer3DNodeAxes.Volume instance that describes this volume
+     * @param bundleGray the bundle to use for the gray mappings
+     * @param bundleRGB the bundle to sue for the rgb mappings
+     * @param statistics the statistics of the image, if {@code null} they are computed by vtk
+     */
+    public Viewer3DNodeVolume(final vtkImageData image, final Viewer3DNodeAxes.Volume axes,
+                              final TransferFunctionBundle bundleGray, final TransferFunctionBundle bundleRGB,
+                              final Viewer3DNodeImageStatistics statistics) {
+
+        m_statistics = statistics;
 
         // make a deep copy so that the info stays static
         m_axesVolume = axes.deepCopy();
@@ -220,9 +365,13 @@ public class Viewer3DNodeVolume {
         m_imageWrapper = new vtkPassThrough();
         m_imageWrapper.SetInput(m_image);
 
+        m_renderWrapper = new vtkPassThrough();
+        m_renderWrapper.SetInput(m_image);
+
         // Get some info about the image
-        m_rangeSelected[0] = m_image.GetScalarTypeMin();
-        m_rangeSelected[1] = m_image.GetScalarTypeMax();
+        final double[] fullRange = getFullRange();
+        m_rangeSelected[0] = fullRange[0];
+        m_rangeSelected[1] = fullRange[1];
 
         // Set up the new bundles
         m_bundleGray = bundleGray;
@@ -250,58 +399,21 @@ public class Viewer3DNodeVolume {
         m_tableGray.SetTableRange(min, max);
         m_tableGray.Build();
 
-        constructOpacityFunction(m_bundleGray.get(TransferFunctionColor.ALPHA), min, max, m_opacityGray);
-        constructOpacityFunction(m_bundleRGB.get(TransferFunctionColor.ALPHA), min, max, m_opacityRGB);
+        m_tableSlices = m_tableRGB;
 
-        constructGrayTransferFunction(m_bundleGray.get(TransferFunctionColor.GREY), min, max);
-        constructColorFunction(m_bundleRGB, min, max);
-
-        constructLookupTableRGB(m_bundleRGB);
-        constructLookupTableGray(m_bundleGray);
+        // the volume starts in rgb mode, the gray functions are built once they are used
+        m_dirtyGray = DIRTY_ALL;
+        m_dirtyRGB = DIRTY_ALL;
+        flushTransferFunctions();
 
         // calc the histogram of the image
         m_histogram = createHistogram(m_imageWrapper.GetOutputPort(), min, max, NUM_BINS);
 
-        final vtkAlgorithmOutput castImage = castImage(m_imageWrapper.GetOutputPort());
-
-        // only works with unsigned short and unsigned char
-        final vtkVolumeTextureMapper2D mapperTex2 = new vtkVolumeTextureMapper2D();
-        mapperTex2.SetInputConnection(castImage);
-
-        // the different methods for the tay caster
-        final vtkVolumeRayCastMapper rayMapper = new vtkVolumeRayCastMapper();
-        rayMapper.SetInputConnection(castImage);
-
-        // speed is comparable to floating point mapper
-        // vtkVolumeRayCastCompositeFunction composite = new
-        // vtkVolumeRayCastCompositeFunction();
-        // everything is just black
-        final vtkVolumeRayCastIsosurfaceFunction isosurface = new vtkVolumeRayCastIsosurfaceFunction();
-        // rayMapper.SetVolumeRayCastFunction(composite);
-        rayMapper.SetVolumeRayCastFunction(isosurface);
-
-        // Set up all the mappers
-        m_mapperFixedPoint = new vtkFixedPointVolumeRayCastMapper();
-        m_mapperFixedPoint.SetInputConnection(m_imageWrapper.GetOutputPort());
-
-        m_mapperTexture3d = new vtkVolumeTextureMapper3D();
-        m_mapperTexture3d.SetInputConnection(m_imageWrapper.GetOutputPort());
-
-        m_mapperSmart = new vtkSmartVolumeMapper();
-        m_mapperSmart.SetInputConnection(m_imageWrapper.GetOutputPort());
-        // smart.SetRequestedRenderModeToRayCastAndTexture();
-
-        m_mapperGPU = new vtkGPUVolumeRayCastMapper();
-        m_mapperGPU.SetInputConnection(m_imageWrapper.GetOutputPort());
-
-        // Set up the vtk property stuff
+        // Set up the vtk property stuff, the mapper is created when the volume is displayed
         m_property = new vtkVolumeProperty();
 
         m_volume = new vtkVolume();
         m_volume.SetProperty(m_property);
-        setMapper(Mapper.SMART);
-
-        setUpImageSlices(m_image, m_imageWrapper.GetOutputPort());
 
         // set up the bounding box
         m_boundingBoxFilter = new vtkOutlineFilter();
@@ -325,6 +437,13 @@ public class Viewer3DNodeVolume {
         this(image, axes, TransferFunctionBundle.newGABundle(), TransferFunctionBundle.newRGBABundle());
     }
 
+    // builds the slice pipeline the first time it is needed, volumes that are only cached never need it
+    private void ensureImageSlices() {
+        if (m_resliceAxial == null) {
+            setUpImageSlices(m_image, m_imageWrapper.GetOutputPort());
+        }
+    }
+
     private void setUpImageSlices(final vtkImageData image, final vtkAlgorithmOutput data) {
 
         // first we need to calculate the center of the image
@@ -369,15 +488,15 @@ public class Viewer3DNodeVolume {
         // Set up the mappers
         m_mapAxial = new vtkImageMapToColors();
         m_mapAxial.SetInputConnection(m_resliceAxial.GetOutputPort());
-        m_mapAxial.SetLookupTable(m_tableRGB);
+        m_mapAxial.SetLookupTable(m_tableSlices);
 
         m_mapCoronal = new vtkImageMapToColors();
         m_mapCoronal.SetInputConnection(m_resliceCoronal.GetOutputPort());
-        m_mapCoronal.SetLookupTable(m_tableRGB);
+        m_mapCoronal.SetLookupTable(m_tableSlices);
 
         m_mapSagittal = new vtkImageMapToColors();
         m_mapSagittal.SetInputConnection(m_resliceSagittal.GetOutputPort());
-        m_mapSagittal.SetLookupTable(m_tableRGB);
+        m_mapSagittal.SetLookupTable(m_tableSlices);
 
         // Set up the image Actors
         m_imageAxial = new vtkImageActor();
@@ -398,149 +517,453 @@ public class Viewer3DNodeVolume {
     public final void setMapper(final Mapper mapper) {
 
         if (m_mapper != mapper) {
+            final Mapper old = m_mapper;
             m_mapper = mapper;
 
-            switch (m_mapper) {
-                case GPU:
-                    m_volume.SetMapper(m_mapperGPU);
-                    break;
-                case TEXTURE3D:
-                    m_volume.SetMapper(m_mapperTexture3d);
-                    break;
-                case RAYFIXEDPOINT:
-                    m_volume.SetMapper(m_mapperFixedPoint);
-                    break;
-                case SMART:
-                    m_volume.SetMapper(m_mapperSmart);
-                    break;
-                default:
-                    m_volume.SetMapper(m_mapperSmart);
-                    break;
+            if (mapper == Mapper.SURFACE) {
+                updateSurface();
+            } else {
+                vtkVolumeMapper m = m_mappers.get(mapper);
+                if (m == null) {
+                    m = createMapper(mapper);
+                    m_mappers.put(mapper, m);
+                }
+                m_volume.SetMapper(m);
+            }
+
+            if (m_releaseUnusedMappers && (old != null)) {
+                release(old);
             }
         }
     }
 
+    // the volume keeps its last volume mapper while the surface is shown, unless it is released
+    private void release(final Mapper mapper) {
+        if (mapper == Mapper.SURFACE) {
+            m_surfaceMapper.SetInput(null);
+            m_shownSurface = null;
+            clearSurfaces();
+        } else {
+            if (m_mapper == Mapper.SURFACE) {
+                m_volume.SetMapper(null);
+            }
+            m_mappers.remove(mapper).Delete();
+        }
+    }
+
+    private vtkVolumeMapper createMapper(final Mapper mapper) {
+        final vtkVolumeMapper m;
+        switch (mapper) {
+            case GPU:
+                m = new vtkGPUVolumeRayCastMapper();
+                break;
+            case TEXTURE3D:
+                m = new vtkVolumeTextureMapper3D();
+                break;
+            case RAYFIXEDPOINT:
+                m = new vtkFixedPointVolumeRayCastMapper();
+                break;
+            case SMART:
+            default:
+                m = new vtkSmartVolumeMapper();
+                break;
+        }
+
+        m.SetInputConnection(m_renderWrapper.GetOutputPort());
+        if (m_clippingPlanes != null) {
+            m.SetClippingPlanes(m_clippingPlanes);
+        }
+        setSampleDistance(m, getSampleDistance(), getImageSampleDistance());
+        applyCropping(m);
+        return m;
+    }
+
     /**
-     * Set the clipping planes to use in all mappers.
+     * Crop the mappers to the part of the image that the opacity function the volume is rendered with leaves visible,
+     * so that no rays are cast through the transparent rest. The part is found from the brick summary of the image,
+     * without looking at the voxels.<br>
      * 
-     * @param planes the planes
+     * Does nothing if neither the function nor the image have changed since the last call, so it is cheap enough to be
+     * called before every render, e.g. to catch up with changes of the functions of a volume these ones are shared
+     * with.
      */
-    public final void setClippingPlanes(final vtkPlanes planes) {
-        m_mapperSmart.SetClippingPlanes(planes);
-        m_mapperFixedPoint.SetClippingPlanes(planes);
-        m_mapperTexture3d.SetClippingPlanes(planes);
-        m_mapperGPU.SetClippingPlanes(planes);
-    }
+    public final void updateCropping() {
+        final Viewer3DNodeVolume functions = (m_shared != null) ? m_shared : this;
+        final double[] opacity = m_grayMode ? functions.m_opacityPointsGray : functions.m_opacityPointsRGB;
+        final Viewer3DNodeImageStatistics statistics = m_statistics;
+        final Viewer3DNodeBrickSummary bricks = (statistics != null) ? statistics.getBricks() : null;
+        if ((opacity == m_croppedOpacity) && (bricks == m_croppedBricks)) {
+            return;
+        }
+        m_croppedOpacity = opacity;
+        m_croppedBricks = bricks;
+
+        m_cropping = null;
+        final int[] dims = m_image.GetDimensions();
+        if ((opacity != null) && (bricks != null) && Arrays.equals(bricks.getDimensions(), dims)) {
+            // a function that leaves nothing visible is rare enough to leave the volume uncropped
+            final int[] visible = bricks.getVisibleExtent(opacity);
+            final int[] extent = m_image.GetExtent();
+            if ((visible != null)
+                    && !Arrays.equals(visible, new int[]{0, dims[0] - 1, 0, dims[1] - 1, 0, dims[2] - 1})) {
+                final double[] origin = m_image.GetOrigin();
+                final double[] spacing = m_image.GetSpacing();
+
+                m_cropping = new double[6];
+                for (int i = 0; i < 6; i++) {
+                    m_cropping[i] = origin[i / 2] + ((extent[2 * (i / 2)] + visible[i]) * spacing[i / 2]);
+                }
+            }
+        }
 
-    private vtkAlgorithmOutput castImage(final vtkAlgorithmOutput data) {
-        final vtkImageCast cast = new vtkImageCast();
-        cast.SetOutputScalarTypeToUnsignedShort();
-        cast.SetInputConnection(data);
+        for (final vtkVolumeMapper m : m_mappers.values()) {
+            applyCropping(m);
+        }
+    }
 
-        return cast.GetOutputPort();
+    private void applyCropping(final vtkVolumeMapper mapper) {
+        if (m_cropping == null) {
+            mapper.CroppingOff();
+        } else {
+            mapper.SetCroppingRegionPlanes(m_cropping);
+            mapper.SetCroppingRegionFlagsToSubVolume();
+            mapper.CroppingOn();
+        }
     }
 
     /**
-     * Build a new opacity function in form of a vtkPiecewiseFunction.
+     * Thin out the samples to render faster, e.g. to keep up with an interaction.<br>
      * 
-     * @param func the source to use
-     * @param min the minimum of the image to display
-     * @param max the maximum of the image to display
-     * @param target the function to write the result to
+     * The distance between two samples along a ray grows by the factor, the distance between two rays by its square
+     * root, so that the time to render falls roughly with the square of the factor. The smart mapper is not affected,
+     * it follows the desired update rate of the render window instead.
+     * 
+     * @param factor the factor, 1 for full quality
      */
-    private void constructOpacityFunction(final TransferFunction func, final double min, final double max,
-                                          final vtkPiecewiseFunction target) {
+    public final void setSampleDistanceFactor(final double factor) {
+        if (factor < 1.0) {
+            throw new IllegalArgumentException("The factor must not be smaller than 1!");
+        }
+        m_qualityFactor = factor;
+        updateSampleDistances();
+    }
 
-        // Build it from scratch
-        target.RemoveAllPoints();
+    /**
+     * The distance between two rays in pixels, also used by {@link Viewer3DNodeCompositeVolume}.
+     */
+    double getImageSampleDistance() {
+        return Math.sqrt(m_qualityFactor);
+    }
 
-        final double range = Math.abs(max - min);
+    /**
+     * The distance between two samples along a ray, which grows with the spacing of the interaction image while it is
+     * rendered. Sampling the coarse image as densely as the image would only cost time.
+     */
+    double getSampleDistance() {
+        final double distance = m_sampleDistance * m_qualityFactor;
+        if (!m_interactive || (m_interactionImage == null)) {
+            return distance;
+        }
+        final double factor = m_interactionImage.GetSpacing()[0] / m_image.GetSpacing()[0];
+        return distance * Math.max(1.0, factor);
+    }
 
-        // Add the points from the function if this is a polyline
-        if (func.getClass() == PolylineTransferFunction.class) {
+    private void updateSampleDistances() {
+        final double distance = getSampleDistance();
+        final double imageDistance = getImageSampleDistance();
+        for (final vtkVolumeMapper m : m_mappers.values()) {
+            setSampleDistance(m, distance, imageDistance);
+        }
+    }
 
-            for (final PolylineTransferFunction.Point p : ((PolylineTransferFunction)func).getPoints()) {
+    // the smart mapper chooses the sample distances of its internal mappers by itself, the ray casters would do so as
+    // well from the desired update rate, but they are told explicitly instead
+    private static void setSampleDistance(final vtkVolumeMapper mapper, final double distance,
+                                          final double imageDistance) {
+        if (mapper instanceof vtkFixedPointVolumeRayCastMapper) {
+            final vtkFixedPointVolumeRayCastMapper m = (vtkFixedPointVolumeRayCastMapper)mapper;
+            m.AutoAdjustSampleDistancesOff();
+            m.SetSampleDistance(distance);
+            m.SetImageSampleDistance(imageDistance);
+        } else if (mapper instanceof vtkGPUVolumeRayCastMapper) {
+            final vtkGPUVolumeRayCastMapper m = (vtkGPUVolumeRayCastMapper)mapper;
+            m.AutoAdjustSampleDistancesOff();
+            m.SetSampleDistance(distance);
+            m.SetImageSampleDistance(imageDistance);
+        } else if (mapper instanceof vtkVolumeTextureMapper3D) {
+            ((vtkVolumeTextureMapper3D)mapper).SetSampleDistance(distance);
+        }
+    }
 
-                addOpacityPoint(p.getX(), p.getY(), range, min, target);
+    /**
+     * Set whether a mapper is deleted as soon as another one is set, instead of being kept for switching back.<br>
+     * 
+     * Saves native memory if many volumes are kept, but switching back builds the mapper again.
+     * 
+     * @param release true to delete the unused mappers
+     */
+    public final void setReleaseUnusedMappers(final boolean release) {
+        m_releaseUnusedMappers = release;
+
+        if (release) {
+            if (m_mapper == Mapper.SURFACE) {
+                m_volume.SetMapper(null);
+            } else {
+                clearSurfaces();
             }
-        } else {
-
-            // else just build a number of points, same procedure as for the
-            // color transfer function
 
-            final double step = 1.0 / (NUM_COLORPOINTS);
-            double x = 0.0;
-
-            while (x <= 1.0) {
-                addOpacityPoint(x, func.getValueAt(x), range, min, target);
-                x += step;
+            final Iterator<Map.Entry<Mapper, vtkVolumeMapper>> it = m_mappers.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Mapper, vtkVolumeMapper> e = it.next();
+                if (e.getKey() != m_mapper) {
+                    e.getValue().Delete();
+                    it.remove();
+                }
             }
         }
     }
 
-    private void addOpacityPoint(final double x, final double y, final double range, final double min,
-                                 final vtkPiecewiseFunction target) {
-        final double pos = (x * range) + min;
-        final double value = y * OPACITY_MAX;
+    /**
+     * Set the clipping planes to use in all mappers.
+     * 
+     * @param planes the planes
+     */
+    public final void setClippingPlanes(final vtkPlanes planes) {
+        m_clippingPlanes = planes;
+        for (final vtkVolumeMapper m : m_mappers.values()) {
+            m.SetClippingPlanes(planes);
+        }
+        if (m_surfaceMapper != null) {
+            m_surfaceMapper.SetClippingPlanes(planes);
+        }
+    }
 
-        target.AddPoint(pos, value);
+    /**
+     * Set the value the isosurface is extracted at, when the {@link Mapper#SURFACE} mapper is used.<br>
+     * 
+     * The surfaces of the last few thresholds are kept, so switching back to one of them is cheap.
+     * 
+     * @param threshold the value, NaN for the middle of the mapped range
+     */
+    public final void setSurfaceThreshold(final double threshold) {
+        m_surfaceThreshold = threshold;
+        updateSurface();
     }
 
     /**
-     * Set up a new Colortransferfunction for mapping to a gray scale.
+     * Gets the value the isosurface is extracted at.
      * 
-     * @param func the function from which to construct transferfunction
-     * @param min the minimum value that the function should map to
-     * @param max the maximum value that the function should map to
+     * @return the threshold
      */
-    private void constructGrayTransferFunction(final TransferFunction func, final double min, final double max) {
+    public final double getSurfaceThreshold() {
+        if (Double.isNaN(m_surfaceThreshold)) {
+            return (m_rangeSelected[0] + m_rangeSelected[1]) / 2;
+        }
+        return m_surfaceThreshold;
+    }
 
-        // Build from scratch
-        m_colorGray.RemoveAllPoints();
+    /**
+     * Set the number of triangles an isosurface is decimated to, so that it renders fast even with software OpenGL.
+     * The kept surfaces are extracted again.
+     * 
+     * @param budget the number of triangles
+     */
+    public final void setTriangleBudget(final int budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("The budget must be positive!");
+        }
+        if (budget != m_triangleBudget) {
+            m_triangleBudget = budget;
+            clearSurfaces();
+            updateSurface();
+        }
+    }
 
-        // REMEMBER: Gray = 0.0, White = 1.0
-        final double range = Math.abs(max - min);
+    /**
+     * Show the isosurface at the current threshold, in the color the color function maps the threshold to. The
+     * surface is extracted unless it is kept from before. Does nothing unless the {@link Mapper#SURFACE} mapper is
+     * used.
+     */
+    public final void updateSurface() {
+        if (m_mapper != Mapper.SURFACE) {
+            return;
+        }
 
-        // if polyline, just use those points
-        if (func.getClass() == PolylineTransferFunction.class) {
+        if (m_surfaceActor == null) {
+            m_surfaceMapper = new vtkPolyDataMapper();
+            m_surfaceMapper.ScalarVisibilityOff();
+            if (m_clippingPlanes != null) {
+                m_surfaceMapper.SetClippingPlanes(m_clippingPlanes);
+            }
 
-            for (final PolylineTransferFunction.Point p : ((PolylineTransferFunction)func).getPoints()) {
+            m_surfaceActor = new vtkActor();
+            m_surfaceActor.SetMapper(m_surfaceMapper);
+        }
+
+        // while the image is streamed in, the surface shown so far is kept, if there is one
+        final double threshold = getSurfaceThreshold();
+        if (!m_streaming) {
+            final vtkPolyData surface = getSurface(threshold);
+            if (surface != m_shownSurface) {
+                m_surfaceMapper.SetInput(surface);
+                m_shownSurface = surface;
+            }
+        }
+        m_surfaceActor.SetVisibility(m_shownSurface != null ? 1 : 0);
+        m_surfaceActor.GetProperty().SetColor(getColorFunction().GetColor(threshold));
+    }
 
-                addGrayPoint(p.getX(), p.getY(), range, min);
+    private synchronized vtkPolyData getSurface(final double threshold) {
+        final Double key = Double.valueOf(threshold);
+        vtkPolyData surface = m_surfaces.get(key);
+        if (surface == null) {
+            surface = extractSurface(threshold);
+            m_surfaces.put(key, surface);
+
+            final Iterator<vtkPolyData> it = m_surfaces.values().iterator();
+            while (m_surfaces.size() > MAX_SURFACES) {
+                final vtkPolyData eldest = it.next();
+                it.remove();
+                eldest.Delete();
             }
+        }
+        return surface;
+    }
+
+    /**
+     * Extract the isosurface of the image at a threshold and decimate it to the triangle budget.
+     */
+    private vtkPolyData extractSurface(final double threshold) {
+        final vtkMarchingCubes cubes = new vtkMarchingCubes();
+        cubes.SetInputConnection(m_imageWrapper.GetOutputPort());
+        cubes.SetValue(0, threshold);
+        cubes.ComputeScalarsOff();
+        cubes.ComputeGradientsOff();
+        cubes.ComputeNormalsOn();
+        cubes.Update();
+
+        final vtkPolyData result = new vtkPolyData();
+        final int triangles = cubes.GetOutput().GetNumberOfPolys();
+        if (triangles <= m_triangleBudget) {
+            result.DeepCopy(cubes.GetOutput());
         } else {
-            // else just build a number of points, same procedure as for the
-            // color transfer function
+            // the topology may change, otherwise the budget can not be met for noisy images
+            final vtkDecimatePro decimate = new vtkDecimatePro();
+            decimate.SetInputConnection(cubes.GetOutputPort());
+            decimate.SetTargetReduction(1.0 - ((double)m_triangleBudget / triangles));
+            decimate.PreserveTopologyOff();
+            decimate.SplittingOn();
+            decimate.BoundaryVertexDeletionOn();
+
+            // the decimation drops the normals
+            final vtkPolyDataNormals normals = new vtkPolyDataNormals();
+            normals.SetInputConnection(decimate.GetOutputPort());
+            normals.SplittingOff();
+            normals.Update();
+
+            result.DeepCopy(normals.GetOutput());
+            normals.Delete();
+            decimate.Delete();
+        }
+        cubes.Delete();
 
-            final double step = 1.0 / (NUM_COLORPOINTS);
-            double x = 0.0;
+        return result;
+    }
 
-            while (x <= 1.0) {
-                addGrayPoint(x, func.getValueAt(x), range, min);
-                x += step;
-            }
+    // the values of the image have changed, the next update extracts the surface again
+    private synchronized void clearSurfaces() {
+        for (final vtkPolyData surface : m_surfaces.values()) {
+            surface.Delete();
         }
+        m_surfaces.clear();
     }
 
-    private void addGrayPoint(final double x, final double y, final double range, final double min) {
-        final double pos = (x * range) + min;
-        final double val = 1.0 - y;
+    /**
+     * Check whether the volume is shown as an isosurface rather than rendered as a volume.
+     * 
+     * @return true if the {@link Mapper#SURFACE} mapper is used
+     */
+    final boolean isSurface() {
+        return m_mapper == Mapper.SURFACE;
+    }
 
-        m_colorGray.AddRGBPoint(pos, val, val, val);
+    /**
+     * Sample a transfer function: the points of a polyline, otherwise a number of equidistant points.
+     * 
+     * @param func the function to sample
+     * @return the positions in [0, 1] and the values, alternating
+     */
+    private static double[] samplePoints(final TransferFunction func) {
+        if (func.getClass() == PolylineTransferFunction.class) {
+            final List<PolylineTransferFunction.Point> points = ((PolylineTransferFunction)func).getPoints();
+
+            final double[] result = new double[2 * points.size()];
+            int i = 0;
+            for (final PolylineTransferFunction.Point p : points) {
+                result[i++] = p.getX();
+                result[i++] = p.getY();
+            }
+            return result;
+        }
+
+        // the step is added up, so there may be one point more than expected
+        final double[] result = new double[2 * (NUM_COLORPOINTS + 2)];
+        final double step = 1.0 / (NUM_COLORPOINTS);
+        double x = 0.0;
+        int i = 0;
+
+        while ((x <= 1.0) && (i < result.length)) {
+            result[i++] = x;
+            result[i++] = func.getValueAt(x);
+            x += step;
+        }
+        return Arrays.copyOf(result, i);
     }
 
     /**
-     * Build a new vtkColorTransferFunction from a standard rbg TFBundle.
+     * Compute the points of an opacity function.
      * 
-     * @param bundle the bundle to use
-     * @param min the minimum of the image to display
-     * @param max the maximum of the image to display
+     * @return the positions and opacities, alternating
      */
-    private void constructColorFunction(final TransferFunctionBundle bundle, final double min, final double max) {
+    private static double[] computeOpacity(final TransferFunction func, final double min, final double max) {
+        final double range = Math.abs(max - min);
+        final double[] points = samplePoints(func);
 
-        // build from scratch
-        m_colorRGB.RemoveAllPoints();
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = (points[i] * range) + min;
+            points[i + 1] *= OPACITY_MAX;
+        }
+        return points;
+    }
 
+    /**
+     * Compute the points of a colortransferfunction that maps to a gray scale.<br>
+     * 
+     * REMEMBER: Gray = 0.0, White = 1.0
+     * 
+     * @return the positions and the red, green and blue values, in groups of four
+     */
+    private static double[] computeGray(final TransferFunction func, final double min, final double max) {
+        final double range = Math.abs(max - min);
+        final double[] points = samplePoints(func);
+        final double[] result = new double[2 * points.length];
+
+        for (int i = 0; i < points.length; i += 2) {
+            final double val = 1.0 - points[i + 1];
+            result[2 * i] = (points[i] * range) + min;
+            result[(2 * i) + 1] = val;
+            result[(2 * i) + 2] = val;
+            result[(2 * i) + 3] = val;
+        }
+        return result;
+    }
+
+    /**
+     * Compute the points of a colortransferfunction from a standard rgb TFBundle.
+     * 
+     * @return the positions and the red, green and blue values, in groups of four
+     */
+    private static double[] computeColor(final TransferFunctionBundle bundle, final double min, final double max) {
         final double range = Math.abs(max - min);
 
         // get all three functions
@@ -548,71 +971,166 @@ public class Viewer3DNodeVolume {
         final TransferFunction green = bundle.get(TransferFunctionColor.GREEN);
         final TransferFunction blue = bundle.get(TransferFunctionColor.BLUE);
 
-        // Add some points
+        final double[] result = new double[4 * (NUM_COLORPOINTS + 1)];
         for (int i = 0; i <= NUM_COLORPOINTS; i++) {
-
             final double frac = ((double)i) / NUM_COLORPOINTS;
-            final double pos = (range * frac) + min;
-
-            final double redVal = red.getValueAt(frac);
-            final double greenVal = green.getValueAt(frac);
-            final double blueVal = blue.getValueAt(frac);
 
-            m_colorRGB.AddRGBPoint(pos, redVal, greenVal, blueVal);
+            result[4 * i] = (range * frac) + min;
+            result[(4 * i) + 1] = red.getValueAt(frac);
+            result[(4 * i) + 2] = green.getValueAt(frac);
+            result[(4 * i) + 3] = blue.getValueAt(frac);
         }
+        return result;
     }
 
     /**
-     * Construct the Lookuptable for the slices.
+     * Compute the values of the lookuptable for the slices.
      * 
-     * @param bundle the bundle for the rgb functions
+     * @param bundle the gray or rgb bundle
+     * @param gray whether the bundle is a gray one
+     * @param size the number of table values
+     * @return the red, green, blue and alpha values, in groups of four
      */
-    private void constructLookupTableRGB(final TransferFunctionBundle bundle) {
-
-        // get all four functions
-        final TransferFunction red = bundle.get(TransferFunctionColor.RED);
-        final TransferFunction green = bundle.get(TransferFunctionColor.GREEN);
-        final TransferFunction blue = bundle.get(TransferFunctionColor.BLUE);
+    private static double[] computeTable(final TransferFunctionBundle bundle, final boolean gray, final int size) {
+        // get all four functions, the gray one stands in for all three colors
+        final TransferFunction red = bundle.get(gray ? TransferFunctionColor.GREY : TransferFunctionColor.RED);
+        final TransferFunction green = gray ? red : bundle.get(TransferFunctionColor.GREEN);
+        final TransferFunction blue = gray ? red : bundle.get(TransferFunctionColor.BLUE);
         final TransferFunction alpha = bundle.get(TransferFunctionColor.ALPHA);
 
-        // add the points
-        final int maxValues = m_tableRGB.GetNumberOfTableValues() - 1;
+        final double[] result = new double[4 * size];
+        final int maxValues = size - 1;
         for (int i = 0; i <= maxValues; i++) {
 
             final double frac = ((double)i) / maxValues;
 
-            final double redVal = red.getValueAt(frac);
-            final double greenVal = green.getValueAt(frac);
-            final double blueVal = blue.getValueAt(frac);
-            double alphaVal = alpha.getValueAt(frac) * OPACITY_MULT;
-            alphaVal = alphaVal > 1.0 ? 1.0 : alphaVal;
+            if (gray) {
+                final double grayVal = 1.0 - red.getValueAt(frac);
+                result[4 * i] = grayVal;
+                result[(4 * i) + 1] = grayVal;
+                result[(4 * i) + 2] = grayVal;
+            } else {
+                result[4 * i] = red.getValueAt(frac);
+                result[(4 * i) + 1] = green.getValueAt(frac);
+                result[(4 * i) + 2] = blue.getValueAt(frac);
+            }
 
-            m_tableRGB.SetTableValue(i, redVal, greenVal, blueVal, alphaVal);
+            final double alphaVal = alpha.getValueAt(frac) * OPACITY_MULT;
+            result[(4 * i) + 3] = alphaVal > 1.0 ? 1.0 : alphaVal;
         }
+        return result;
     }
 
     /**
-     * Construct the Lookuptable for the slices.
+     * The transfer functions of one mode, computed from a bundle.<br>
      * 
-     * @param bundle the bundle for the gray functions
+     * An update is created and applied on the thread that renders, but can be computed on any thread. It is only
+     * applied if the transfer functions have not changed again since it was created.
      */
-    private void constructLookupTableGray(final TransferFunctionBundle bundle) {
+    public final class TransferFunctionUpdate {
 
-        // get all four functions
-        final TransferFunction gray = bundle.get(TransferFunctionColor.GREY);
-        final TransferFunction alpha = bundle.get(TransferFunctionColor.ALPHA);
+        private final boolean m_gray;
 
-        // add the points
-        final int maxValues = m_tableGray.GetNumberOfTableValues() - 1;
-        for (int i = 0; i <= maxValues; i++) {
+        private final int m_parts;
 
-            final double frac = ((double)i) / maxValues;
+        private final long m_version;
+
+        private final TransferFunctionBundle m_bundle;
+
+        private final double m_min;
+
+        private final double m_max;
+
+        private final int m_tableSize;
+
+        private double[] m_opacity;
+
+        private double[] m_color;
 
-            final double grayVal = 1.0 - gray.getValueAt(frac);
-            double alphaVal = alpha.getValueAt(frac) * OPACITY_MULT;
-            alphaVal = alphaVal > 1.0 ? 1.0 : alphaVal;
+        private double[] m_table;
 
-            m_tableGray.SetTableValue(i, grayVal, grayVal, grayVal, alphaVal);
+        private TransferFunctionUpdate(final boolean gray, final int parts, final TransferFunctionBundle bundle) {
+            m_gray = gray;
+            m_parts = parts;
+            m_version = m_tfVersion;
+            m_bundle = bundle;
+            m_min = m_rangeSelected[0];
+            m_max = m_rangeSelected[1];
+            m_tableSize = (gray ? m_tableGray : m_tableRGB).GetNumberOfTableValues();
+        }
+
+        /**
+         * Evaluate the transfer functions. Does not touch any vtk object, so this can run in the background.
+         */
+        public void compute() {
+            if ((m_parts & DIRTY_OPACITY) != 0) {
+                m_opacity = computeOpacity(m_bundle.get(TransferFunctionColor.ALPHA), m_min, m_max);
+            }
+            if ((m_parts & DIRTY_COLOR) != 0) {
+                m_color =
+                        m_gray ? computeGray(m_bundle.get(TransferFunctionColor.GREY), m_min, m_max) : computeColor(
+                                m_bundle, m_min, m_max);
+            }
+            if ((m_parts & DIRTY_TABLE) != 0) {
+                m_table = computeTable(m_bundle, m_gray, m_tableSize);
+            }
+        }
+
+        /**
+         * Copy the computed transfer functions to the volume.
+         * 
+         * @return false if the transfer functions have changed in the meantime and this update has been dropped
+         */
+        public boolean apply() {
+            if ((m_version != m_tfVersion) || (m_gray != m_grayMode)) {
+                return false;
+            }
+
+            install();
+            return true;
+        }
+
+        private void install() {
+            final vtkPiecewiseFunction opacity = m_gray ? m_opacityGray : m_opacityRGB;
+            final vtkColorTransferFunction color = m_gray ? m_colorGray : m_colorRGB;
+            final vtkLookupTable table = m_gray ? m_tableGray : m_tableRGB;
+
+            if (m_opacity != null) {
+                opacity.RemoveAllPoints();
+                for (int i = 0; i < m_opacity.length; i += 2) {
+                    opacity.AddPoint(m_opacity[i], m_opacity[i + 1]);
+                }
+
+                if (m_gray) {
+                    m_opacityPointsGray = m_opacity;
+                } else {
+                    m_opacityPointsRGB = m_opacity;
+                }
+            }
+
+            if (m_color != null) {
+                color.RemoveAllPoints();
+                for (int i = 0; i < m_color.length; i += 4) {
+                    color.AddRGBPoint(m_color[i], m_color[i + 1], m_color[i + 2], m_color[i + 3]);
+                }
+            }
+
+            if (m_table != null) {
+                for (int i = 0; i < m_tableSize; i++) {
+                    table.SetTableValue(i, m_table[4 * i], m_table[(4 * i) + 1], m_table[(4 * i) + 2],
+                                        m_table[(4 * i) + 3]);
+                }
+            }
+
+            if (m_gray) {
+                m_dirtyGray &= ~m_parts;
+            } else {
+                m_dirtyRGB &= ~m_parts;
+            }
+
+            if (m_opacity != null) {
+                updateCropping();
+            }
         }
     }
 
@@ -628,6 +1146,12 @@ public class Viewer3DNodeVolume {
     private HistogramWithNormalization createHistogram(final vtkAlgorithmOutput data, final double min,
                                                        final double max, final int numBins) {
 
+        // use the histogram that was gathered during the conversion if possible
+        final Viewer3DNodeImageStatistics statistics = m_statistics;
+        if (statistics != null) {
+            return new HistogramWithNormalization(statistics.getHistogram(min, max, numBins), min, max);
+        }
+
         final double spacing = Math.abs(max - min) / numBins;
 
         // set up an accumulator to generate the histogram
@@ -662,26 +1186,245 @@ public class Viewer3DNodeVolume {
         return m_histogram;
     }
 
+    /**
+     * Call this if the values of the image changed.<br>
+     * 
+     * The next render will show the new values.
+     */
+    public final void updateImage() {
+        final vtkImageData pending = takePendingImage();
+        if (pending != null) {
+            swapImage(pending);
+            updateCropping();
+        } else {
+            m_image.Modified();
+        }
+
+        // no surfaces are extracted from values that are still incomplete
+        m_streaming = true;
+    }
+
+    /**
+     * Hand over a finer version of the image, that replaces the current one on the next call to
+     * {@link #updateImage()} or {@link #updateValues()}.<br>
+     * 
+     * This method may be called from any thread. The previous image is kept as interaction image if there is none
+     * yet, otherwise it is deleted.
+     * 
+     * @param image the new image, it must cover the same space as the current one
+     * @param statistics the statistics of the new image, may be {@code null}
+     */
+    public final synchronized void setPendingImage(final vtkImageData image,
+                                                   final Viewer3DNodeImageStatistics statistics) {
+        // a pending image that has not been displayed yet is not needed anymore
+        if (m_pendingImage != null) {
+            m_pendingImage.Delete();
+        }
+        m_pendingImage = image;
+        m_pendingStatistics = statistics;
+    }
+
+    private synchronized vtkImageData takePendingImage() {
+        final vtkImageData image = m_pendingImage;
+        if (image != null) {
+            m_statistics = m_pendingStatistics;
+        }
+        m_pendingImage = null;
+        m_pendingStatistics = null;
+        return image;
+    }
+
+    /**
+     * Set the statistics of the current image, after its values have been filled in.<br>
+     * 
+     * They are used from the next call to {@link #updateValues()} on.
+     * 
+     * @param statistics the statistics, or {@code null} to let vtk compute them
+     */
+    public final void setStatistics(final Viewer3DNodeImageStatistics statistics) {
+        m_statistics = statistics;
+    }
+
+    // a copy subsampled from incomplete values is subsampled again at the next interaction
+    private synchronized void dropSubsampledImage() {
+        if (m_subsampled) {
+            if (m_interactive) {
+                m_renderWrapper.SetInput(m_image);
+            }
+            m_interactionImage.Delete();
+            m_interactionImage = null;
+            m_subsampled = false;
+        }
+    }
+
+    // synchronized, so that the memory size is not read from an image that is just being deleted
+    private synchronized void swapImage(final vtkImageData image) {
+        final vtkImageData old = m_image;
+        m_image = image;
+
+        // the surfaces of the old values are extracted again once they are needed and complete
+        clearSurfaces();
+
+        m_imageWrapper.SetInput(m_image);
+        if (!m_interactive || (m_interactionImage == null)) {
+            m_renderWrapper.SetInput(m_image);
+        }
+
+        if (m_interactionImage == null) {
+            m_interactionImage = old;
+        } else {
+            old.Delete();
+        }
+    }
+
+    /**
+     * Set whether the volume is rendered while the user interacts with the view.<br>
+     * 
+     * During an interaction the coarse interaction image is rendered instead of the image, with a sample distance that
+     * fits its spacing. Large images without one get a copy that is subsampled in the background once their values are
+     * complete, until it is ready they are rendered as they are.
+     * 
+     * @param interactive whether an interaction is going on
+     */
+    public final void setInteractive(final boolean interactive) {
+        if (interactive) {
+            subsampleInteractionImage();
+        }
+
+        if ((m_interactive != interactive) && (m_interactionImage != null)) {
+            m_renderWrapper.SetInput(interactive ? m_interactionImage : m_image);
+        }
+        m_interactive = interactive;
+        updateSampleDistances();
+    }
+
+    private synchronized void subsampleInteractionImage() {
+        if ((m_interactionImage != null) || m_subsampling || m_streaming || m_deleted) {
+            return;
+        }
+
+        final int[] dims = m_image.GetDimensions();
+        final double voxels = (double)dims[0] * dims[1] * dims[2];
+        if (voxels <= INTERACTION_VOXELS) {
+            // fast enough to be rendered as it is
+            return;
+        }
+
+        // a copy without a pipeline, so that the rendered image is not updated from two threads, it shares the values
+        // and keeps them alive even if the volume is deleted meanwhile
+        final vtkImageData copy = new vtkImageData();
+        copy.ShallowCopy(m_image);
+
+        final int factor = (int)Math.ceil(Math.cbrt(voxels / INTERACTION_VOXELS));
+        final vtkImageShrink3D shrink = new vtkImageShrink3D();
+        shrink.SetInput(copy);
+        shrink.SetShrinkFactors(Math.min(factor, dims[0]), Math.min(factor, dims[1]), Math.min(factor, dims[2]));
+
+        final vtkImageData source = m_image;
+        m_subsampling = true;
+        SUBSAMPLE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                shrink.Update();
+                final vtkImageData subsampled = new vtkImageData();
+                subsampled.DeepCopy(shrink.GetOutput());
+                shrink.Delete();
+                copy.Delete();
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setSubsampledImage(source, subsampled);
+                    }
+                });
+            }
+        });
+    }
+
+    // the render input is only switched on the event dispatch thread, if an interaction is going on it uses the copy
+    private synchronized void setSubsampledImage(final vtkImageData source, final vtkImageData subsampled) {
+        m_subsampling = false;
+        if (m_deleted || (m_image != source) || (m_interactionImage != null)) {
+            subsampled.Delete();
+            return;
+        }
+
+        m_interactionImage = subsampled;
+        m_subsampled = true;
+        if (m_interactive) {
+            m_renderWrapper.SetInput(m_interactionImage);
+            updateSampleDistances();
+        }
+    }
+
+    /**
+     * Call this once the values of the image are complete, if the volume has been displayed while it was still being
+     * loaded.<br>
+     * 
+     * The range, the transfer functions and the histogram will be computed again from the values of the image.
+     */
+    public final void updateValues() {
+        final vtkImageData pending = takePendingImage();
+        if (pending != null) {
+            swapImage(pending);
+        }
+        m_image.Modified();
+        dropSubsampledImage();
+
+        final double[] range = getFullRange();
+        m_rangeSelected[0] = range[0];
+        m_rangeSelected[1] = range[1];
+
+        m_tableRGB.SetTableRange(range[0], range[1]);
+        m_tableGray.SetTableRange(range[0], range[1]);
+
+        invalidate(!m_grayMode, DIRTY_ALL);
+        invalidate(m_grayMode, DIRTY_ALL);
+
+        m_histogram = createHistogram(m_imageWrapper.GetOutputPort(), range[0], range[1], NUM_BINS);
+        updateCropping();
+
+        m_streaming = false;
+        clearSurfaces();
+        updateSurface();
+
+        // ready before the next interaction starts
+        subsampleInteractionImage();
+    }
+
     /**
      * Gets the volume for this instance.
      * 
      * @return The volume.
      */
     public final vtkVolume getVolume() {
+        if (m_mapper == null) {
+            setMapper(Mapper.SMART);
+        }
         return m_volume;
     }
 
+    /**
+     * Gets what displays this instance, the isosurface actor if the {@link Mapper#SURFACE} mapper is used, otherwise
+     * the volume.
+     * 
+     * @return the prop to render
+     */
+    public final vtkProp3D getProp() {
+        if (m_mapper == Mapper.SURFACE) {
+            updateSurface();
+            return m_surfaceActor;
+        }
+        return getVolume();
+    }
+
     /**
      * Call this if the TFBundle changed.
      * 
      * The method will sync the TFBundle to the corresponding vtkFunction.
      */
     public final void updateOpacityGray() {
-
-        final double min = m_rangeSelected[0];
-        final double max = m_rangeSelected[1];
-
-        constructOpacityFunction(m_bundleGray.get(TransferFunctionColor.ALPHA), min, max, m_opacityGray);
+        invalidate(true, DIRTY_OPACITY);
     }
 
     /**
@@ -690,11 +1433,7 @@ public class Viewer3DNodeVolume {
      * The method will sync the TFBundle to the corresponding vtkFunction.
      */
     public final void updateOpacityRGB() {
-
-        final double min = m_rangeSelected[0];
-        final double max = m_rangeSelected[1];
-
-        constructOpacityFunction(m_bundleRGB.get(TransferFunctionColor.ALPHA), min, max, m_opacityRGB);
+        invalidate(false, DIRTY_OPACITY);
     }
 
     /**
@@ -703,11 +1442,7 @@ public class Viewer3DNodeVolume {
      * The method will sync the TFBundle to the corresponding vtkFunction.
      */
     public final void updateColorGray() {
-
-        final double min = m_rangeSelected[0];
-        final double max = m_rangeSelected[1];
-
-        constructGrayTransferFunction(m_bundleGray.get(TransferFunctionColor.GREY), min, max);
+        invalidate(true, DIRTY_COLOR);
     }
 
     /**
@@ -716,11 +1451,7 @@ public class Viewer3DNodeVolume {
      * The method will sync the TFBundle to the corresponding vtkFunction.
      */
     public final void updateColorRGB() {
-
-        final double min = m_rangeSelected[0];
-        final double max = m_rangeSelected[1];
-
-        constructColorFunction(m_bundleRGB, min, max);
+        invalidate(false, DIRTY_COLOR);
     }
 
     /**
@@ -729,7 +1460,7 @@ public class Viewer3DNodeVolume {
      * The method will sync the TFBundle to the corresponding vtkLookupTable.
      */
     public final void updateLookupTableRGB() {
-        constructLookupTableRGB(m_bundleRGB);
+        invalidate(false, DIRTY_TABLE);
     }
 
     /**
@@ -738,7 +1469,100 @@ public class Viewer3DNodeVolume {
      * The method will sync the TFBundle to the corresponding vtkLookupTable.
      */
     public final void updateLookupTableGray() {
-        constructLookupTableGray(m_bundleGray);
+        invalidate(true, DIRTY_TABLE);
+    }
+
+    /**
+     * Mark parts of the transfer functions of a mode as out of date. They are rebuilt by the next call to
+     * {@link #flushTransferFunctions()} while the mode is active, so that any number of changes between two frames
+     * costs a single rebuild.
+     */
+    private void invalidate(final boolean gray, final int parts) {
+        m_tfVersion++;
+        if (gray) {
+            m_dirtyGray |= parts;
+        } else {
+            m_dirtyRGB |= parts;
+        }
+    }
+
+    /**
+     * Rebuild the parts of the transfer functions this volume is rendered with that are out of date, i.e. those of the
+     * active mode, of the volume they are shared with if any. Call this before the volume is rendered, it does nothing
+     * if nothing has changed.
+     */
+    public final void flushTransferFunctions() {
+        final Viewer3DNodeVolume functions = (m_shared != null) ? m_shared : this;
+        functions.flushTransferFunctions(m_grayMode);
+    }
+
+    private void flushTransferFunctions(final boolean gray) {
+        final int dirty = gray ? m_dirtyGray : m_dirtyRGB;
+        if (dirty != 0) {
+            final TransferFunctionUpdate update =
+                    new TransferFunctionUpdate(gray, dirty, gray ? m_bundleGray : m_bundleRGB);
+            update.compute();
+            update.install();
+        }
+    }
+
+    /**
+     * Render this volume with the transfer functions and lookuptables of another volume, instead of its own ones.<br>
+     * 
+     * Editing the transfer functions of the other volume then changes all volumes that share them at once, at the cost
+     * of a single update. The other volume's mapping range is used as well. When sharing ends, this volume takes a
+     * copy of the bundles it has been rendered with, so that it still looks the same.
+     * 
+     * @param source the volume whose transfer functions to use, or {@code null} to use the own ones again
+     */
+    public final void shareTransferFunctions(final Viewer3DNodeVolume source) {
+        final Viewer3DNodeVolume shared = (source == this) ? null : source;
+        if (shared == m_shared) {
+            return;
+        }
+
+        if ((shared == null) && (m_shared != null)) {
+            m_bundleGray = new TransferFunctionBundle(m_shared.m_bundleGray);
+            m_bundleRGB = new TransferFunctionBundle(m_shared.m_bundleRGB);
+            m_dirtyGray = DIRTY_ALL;
+            m_dirtyRGB = DIRTY_ALL;
+            m_tfVersion++;
+        }
+        m_shared = shared;
+
+        if (m_grayMode) {
+            setGrayMode();
+        } else {
+            setRGBMode();
+        }
+    }
+
+    /**
+     * Prepare to rebuild all transfer functions of the active mode from a bundle, without doing the work yet.<br>
+     * 
+     * If the bundle is not the one of this volume, a deep copy of it becomes the bundle of this volume, as in
+     * {@link #setBundleGray(TransferFunctionBundle)}. Any update created before is outdated afterwards.
+     * 
+     * @param bundle the bundle of the active mode
+     * @return the update to compute and apply
+     */
+    public final TransferFunctionUpdate createTransferFunctionUpdate(final TransferFunctionBundle bundle) {
+        // the copy is only read by the update, while the original may be edited meanwhile
+        final TransferFunctionBundle copy = new TransferFunctionBundle(bundle);
+        if (m_grayMode) {
+            if (bundle != m_bundleGray) {
+                m_bundleGray = copy;
+            }
+            m_dirtyGray = DIRTY_ALL;
+        } else {
+            if (bundle != m_bundleRGB) {
+                m_bundleRGB = copy;
+            }
+            m_dirtyRGB = DIRTY_ALL;
+        }
+
+        m_tfVersion++;
+        return new TransferFunctionUpdate(m_grayMode, DIRTY_ALL, copy);
     }
 
     /**
@@ -747,18 +1571,23 @@ public class Viewer3DNodeVolume {
      * Basically, the image will now be rendered in gray
      */
     public final void setGrayMode() {
-        m_property.SetColor(m_colorGray);
-        m_property.SetScalarOpacity(m_opacityGray);
+        m_grayMode = true;
+
+        // the functions to render with, maybe shared with another volume
+        final Viewer3DNodeVolume functions = (m_shared != null) ? m_shared : this;
+        functions.flushTransferFunctions(true);
+
+        m_property.SetColor(functions.m_colorGray);
+        m_property.SetScalarOpacity(functions.m_opacityGray);
 
         // tell the vtk pipeline that we modified the property
         // will not work if done directly on the property or the volume or the
         // mapper
-        m_colorGray.Modified();
-        m_opacityGray.Modified();
+        functions.m_colorGray.Modified();
+        functions.m_opacityGray.Modified();
 
-        m_mapAxial.SetLookupTable(m_tableGray);
-        m_mapCoronal.SetLookupTable(m_tableGray);
-        m_mapSagittal.SetLookupTable(m_tableGray);
+        setSliceTable(functions.m_tableGray);
+        updateCropping();
     }
 
     /**
@@ -767,18 +1596,33 @@ public class Viewer3DNodeVolume {
      * Basically, the image will now be rendered in color
      */
     public final void setRGBMode() {
-        m_property.SetColor(m_colorRGB);
-        m_property.SetScalarOpacity(m_opacityRGB);
+        m_grayMode = false;
+
+        // the functions to render with, maybe shared with another volume
+        final Viewer3DNodeVolume functions = (m_shared != null) ? m_shared : this;
+        functions.flushTransferFunctions(false);
+
+        m_property.SetColor(functions.m_colorRGB);
+        m_property.SetScalarOpacity(functions.m_opacityRGB);
 
         // tell the vtk pipeline that we modified the property
         // will not work if done directly on the property or the volume or the
         // mapper
-        m_colorRGB.Modified();
-        m_opacityRGB.Modified();
+        functions.m_colorRGB.Modified();
+        functions.m_opacityRGB.Modified();
+
+        setSliceTable(functions.m_tableRGB);
+        updateCropping();
+    }
+
+    private void setSliceTable(final vtkLookupTable table) {
+        m_tableSlices = table;
 
-        m_mapAxial.SetLookupTable(m_tableRGB);
-        m_mapCoronal.SetLookupTable(m_tableRGB);
-        m_mapSagittal.SetLookupTable(m_tableRGB);
+        if (m_resliceAxial != null) {
+            m_mapAxial.SetLookupTable(table);
+            m_mapCoronal.SetLookupTable(table);
+            m_mapSagittal.SetLookupTable(table);
+        }
     }
 
     /**
@@ -841,8 +1685,7 @@ public class Viewer3DNodeVolume {
      */
     public final void setBundleGray(final TransferFunctionBundle bundleGray) {
         m_bundleGray = new TransferFunctionBundle(bundleGray);
-        updateOpacityGray();
-        updateColorGray();
+        invalidate(true, DIRTY_ALL);
     }
 
     /**
@@ -854,9 +1697,7 @@ public class Viewer3DNodeVolume {
      */
     public final void setBundleRGB(final TransferFunctionBundle bundleRGB) {
         m_bundleRGB = new TransferFunctionBundle(bundleRGB);
-        updateOpacityRGB();
-        updateColorRGB();
-        updateLookupTableRGB();
+        invalidate(false, DIRTY_ALL);
     }
 
     /**
@@ -865,6 +1706,7 @@ public class Viewer3DNodeVolume {
      * @return the axial image actor
      */
     public final vtkImageActor getImageActorAxial() {
+        ensureImageSlices();
         return m_imageAxial;
     }
 
@@ -874,6 +1716,7 @@ public class Viewer3DNodeVolume {
      * @return the coronal image actor
      */
     public final vtkImageActor getImageActorCoronal() {
+        ensureImageSlices();
         return m_imageCoronal;
     }
 
@@ -883,6 +1726,7 @@ public class Viewer3DNodeVolume {
      * @return the sagittal image actor
      */
     public final vtkImageActor getImageActorSagittal() {
+        ensureImageSlices();
         return m_imageSagittal;
     }
 
@@ -894,6 +1738,7 @@ public class Viewer3DNodeVolume {
      * @param slices by n slices
      */
     public final void moveImageAxial(final int slices) {
+        ensureImageSlices();
         final double spacing = m_image.GetSpacing()[2];
         moveImage(m_resliceAxial, spacing, slices);
     }
@@ -906,6 +1751,7 @@ public class Viewer3DNodeVolume {
      * @param slices by n slices
      */
     public final void moveImageCoronal(final int slices) {
+        ensureImageSlices();
         final double spacing = m_image.GetSpacing()[1];
         moveImage(m_resliceCoronal, spacing, slices);
     }
@@ -918,6 +1764,7 @@ public class Viewer3DNodeVolume {
      * @param slices by n slices
      */
     public final void moveImageSagittal(final int slices) {
+        ensureImageSlices();
         final double spacing = m_image.GetSpacing()[0];
         moveImage(m_resliceSagittal, spacing, slices);
     }
@@ -960,6 +1807,87 @@ public class Viewer3DNodeVolume {
         return m_image.GetExtent();
     }
 
+    /**
+     * Get bounds of the values in a region of the image from the brick summary of the image, without looking at the
+     * voxels. The true minimum and maximum of the region lie within the bounds.
+     * 
+     * @param extent the region, in the same coordinates as {@link #getExtent()}
+     * @return the lower and the upper bound, or {@code null} if the summary is not known or the region lies outside
+     *         of the image
+     */
+    public final double[] getValueRange(final int[] extent) {
+        final Viewer3DNodeImageStatistics statistics = m_statistics;
+        final Viewer3DNodeBrickSummary bricks = (statistics != null) ? statistics.getBricks() : null;
+        if ((bricks == null) || !Arrays.equals(bricks.getDimensions(), m_image.GetDimensions())) {
+            return null;
+        }
+
+        final int[] origin = m_image.GetExtent();
+        final int[] region = new int[6];
+        for (int i = 0; i < 6; i++) {
+            region[i] = extent[i] - origin[2 * (i / 2)];
+        }
+        return bricks.getRange(region);
+    }
+
+    /**
+     * Get the region the mappers are cropped to, which holds everything the volume's opacity function leaves visible.
+     * 
+     * @return the region in world coordinates, xmin, xmax, ymin, ymax, zmin, zmax, or {@code null} if it is not
+     *         cropped
+     */
+    final double[] getCropping() {
+        return m_cropping == null ? null : m_cropping.clone();
+    }
+
+    /**
+     * Check whether the images of two volumes can be rendered as the components of one image, i.e. whether they have
+     * the same extent and scalar type, during an interaction as well.
+     * 
+     * @param other the other volume
+     * @return true if they can be combined
+     */
+    final boolean hasSameLayout(final Viewer3DNodeVolume other) {
+        if ((m_image.GetScalarType() != other.m_image.GetScalarType())
+                || (m_image.GetNumberOfScalarComponents() != 1)
+                || (other.m_image.GetNumberOfScalarComponents() != 1)
+                || !Arrays.equals(m_image.GetExtent(), other.m_image.GetExtent())) {
+            return false;
+        }
+
+        if ((m_interactionImage == null) || (other.m_interactionImage == null)) {
+            return m_interactionImage == other.m_interactionImage;
+        }
+        return Arrays.equals(m_interactionImage.GetExtent(), other.m_interactionImage.GetExtent());
+    }
+
+    /**
+     * Get the output the mappers render, that is the image or, during an interaction, the coarse image.
+     * 
+     * @return the output port
+     */
+    final vtkAlgorithmOutput getRenderOutput() {
+        return m_renderWrapper.GetOutputPort();
+    }
+
+    /**
+     * Get the color function the volume is currently rendered with, depending on the mode.
+     * 
+     * @return the color function
+     */
+    final vtkColorTransferFunction getColorFunction() {
+        return m_property.GetRGBTransferFunction(0);
+    }
+
+    /**
+     * Get the opacity function the volume is currently rendered with, depending on the mode.
+     * 
+     * @return the opacity function
+     */
+    final vtkPiecewiseFunction getOpacityFunction() {
+        return m_property.GetScalarOpacity(0);
+    }
+
     /**
      * Get all current slices at once.<br>
      * 
@@ -984,6 +1912,7 @@ public class Viewer3DNodeVolume {
      * @return the axial slice
      */
     public final int getCurrentSliceAxial() {
+        ensureImageSlices();
         final double spacing = m_image.GetSpacing()[2];
         return (int)(m_resliceAxial.GetResliceAxes().GetElement(2, 3) / spacing);
     }
@@ -994,6 +1923,7 @@ public class Viewer3DNodeVolume {
      * @return the coronal slice
      */
     public final int getCurrentSliceCoronal() {
+        ensureImageSlices();
         final double spacing = m_image.GetSpacing()[1];
         return (int)(m_resliceCoronal.GetResliceAxes().GetElement(1, 3) / spacing);
     }
@@ -1004,17 +1934,67 @@ public class Viewer3DNodeVolume {
      * @return the sagittal slice
      */
     public final int getCurrentSliceSagittal() {
+        ensureImageSlices();
         final double spacing = m_image.GetSpacing()[0];
         return (int)(m_resliceSagittal.GetResliceAxes().GetElement(0, 3) / spacing);
     }
 
     public final void normalize() {
-        final double[] values = m_image.GetScalarRange();
-        setMappingRange(values[0], values[1]);
+        final Viewer3DNodeImageStatistics statistics = m_statistics;
+        if (statistics != null) {
+            setMappingRange(statistics.getMin(), statistics.getMax());
+        } else {
+            final double[] values = m_image.GetScalarRange();
+            setMappingRange(values[0], values[1]);
+        }
+    }
+
+    /**
+     * Map the range between two percentiles of the values of the image, so that outliers do not squeeze the
+     * transfer functions.<br>
+     * 
+     * Falls back to {@link #normalize()} if the statistics of the image are not known.
+     * 
+     * @param lower the fraction of the values that lie below the mapped range
+     * @param upper the fraction of the values that lie below the upper end of the mapped range
+     */
+    public final void normalize(final double lower, final double upper) {
+        final Viewer3DNodeImageStatistics statistics = m_statistics;
+        if (statistics == null) {
+            normalize();
+            return;
+        }
+
+        final double min = statistics.getPercentile(lower);
+        final double max = statistics.getPercentile(upper);
+        if (min < max) {
+            setMappingRange(min, max);
+        } else {
+            normalize();
+        }
     }
 
     public final void useFullRangeForMapping() {
-        setMappingRange(m_image.GetScalarTypeMin(), m_image.GetScalarTypeMax());
+        final double[] range = getFullRange();
+        setMappingRange(range[0], range[1]);
+    }
+
+    /**
+     * The range of the values of the image, for every scalar type. The range of the type would be far too wide, e.g.
+     * for 12 bit data stored as unsigned short, or for float data.
+     */
+    private double[] getFullRange() {
+        final Viewer3DNodeImageStatistics statistics = m_statistics;
+        final double[] range;
+        if (statistics != null) {
+            range = new double[]{statistics.getMin(), statistics.getMax()};
+        } else {
+            range = m_image.GetScalarRange();
+        }
+        if (range[1] <= range[0]) {
+            range[1] = range[0] + 1;
+        }
+        return range;
     }
 
     public final void setMappingRange(final double min, final double max) {
@@ -1026,13 +2006,29 @@ public class Viewer3DNodeVolume {
         m_rangeSelected[0] = min;
         m_rangeSelected[1] = max;
 
-        updateOpacityGray();
-        updateColorGray();
-        updateLookupTableGray();
+        invalidate(!m_grayMode, DIRTY_ALL);
+        invalidate(m_grayMode, DIRTY_ALL);
+    }
 
-        updateOpacityRGB();
-        updateColorRGB();
-        updateLookupTableRGB();
+    /**
+     * Get the native memory held by the images of this volume, that is the displayed one, the one shown during
+     * interaction and the one waiting to be swapped in, and by the kept isosurfaces.
+     * 
+     * @return the size in bytes
+     */
+    public final synchronized long getMemorySize() {
+        // vtk reports the size in kibibytes
+        long kib = m_image.GetActualMemorySize();
+        if (m_interactionImage != null) {
+            kib += m_interactionImage.GetActualMemorySize();
+        }
+        if (m_pendingImage != null) {
+            kib += m_pendingImage.GetActualMemorySize();
+        }
+        for (final vtkPolyData surface : m_surfaces.values()) {
+            kib += surface.GetActualMemorySize();
+        }
+        return kib << 10;
     }
 
     /**
@@ -1041,20 +2037,26 @@ public class Viewer3DNodeVolume {
      * @param gc wheter or not to call the garbage collector
      */
     public final void delete(final boolean gc) {
+        synchronized (this) {
+            m_deleted = true;
+        }
+
         // We must call Delete() on all vtkObjects to decrease their
         // reference count, so that the vtk Garbage Collector can
         // actually free the memory
-        m_mapAxial.Delete();
-        m_mapCoronal.Delete();
-        m_mapSagittal.Delete();
-
-        m_resliceAxial.Delete();
-        m_resliceCoronal.Delete();
-        m_resliceSagittal.Delete();
-
-        m_imageAxial.Delete();
-        m_imageCoronal.Delete();
-        m_imageSagittal.Delete();
+        if (m_resliceAxial != null) {
+            m_mapAxial.Delete();
+            m_mapCoronal.Delete();
+            m_mapSagittal.Delete();
+
+            m_resliceAxial.Delete();
+            m_resliceCoronal.Delete();
+            m_resliceSagittal.Delete();
+
+            m_imageAxial.Delete();
+            m_imageCoronal.Delete();
+            m_imageSagittal.Delete();
+        }
 
         m_tableRGB.Delete();
         m_tableGray.Delete();
@@ -1064,17 +2066,32 @@ public class Viewer3DNodeVolume {
         m_colorGray.Delete();
         m_colorRGB.Delete();
 
-        m_mapperFixedPoint.Delete();
-        m_mapperTexture3d.Delete();
-        m_mapperSmart.Delete();
-        m_mapperGPU.Delete();
+        for (final vtkVolumeMapper m : m_mappers.values()) {
+            m.Delete();
+        }
+        m_mappers.clear();
+
+        clearSurfaces();
+        if (m_surfaceActor != null) {
+            m_surfaceActor.Delete();
+            m_surfaceMapper.Delete();
+        }
 
         m_imageWrapper.Delete();
+        m_renderWrapper.Delete();
 
         m_volume.Delete();
         m_property.Delete();
         m_image.Delete();
 
+        if (m_interactionImage != null) {
+            m_interactionImage.Delete();
+        }
+        final vtkImageData pending = takePendingImage();
+        if (pending != null) {
+            pending.Delete();
+        }
+
         if (gc) {
             // now call the Garbage Collector to free all memory from this
             // volume
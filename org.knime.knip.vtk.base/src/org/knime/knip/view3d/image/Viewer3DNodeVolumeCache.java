@@ -0,0 +1,519 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.image;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache for converted volumes, that keeps the native memory held by the volumes within a budget.<br>
+ *
+ * The volumes are cached by the identity of their image and their key, so one instance can be shared by all
+ * views of a process, see {@link #getInstance()}. A volume is used by one owner at a time, usually an
+ * {@link Viewer3DNodeImageAdmin}. Once its owner releases it, the next owner that asks for it may take it over, e.g.
+ * when a view on the same image is opened again.<br>
+ *
+ * The volumes are kept in the order they were last used. If the volumes take more memory than the budget, the least
+ * recently used ones are evicted and deleted, except for the volumes their owners have pinned because they are
+ * displayed. The volumes of images that have been garbage collected are evicted as well.
+ *
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+public class Viewer3DNodeVolumeCache {
+
+    /**
+     * The default budget, 1 GiB.
+     */
+    public static final long DEFAULT_BUDGET = 1L << 30;
+
+    private static final Viewer3DNodeVolumeCache INSTANCE = new Viewer3DNodeVolumeCache();
+
+    /**
+     * Is told about the volumes of an owner that are evicted by someone else.
+     */
+    public interface Owner {
+
+        /**
+         * Called when a volume of this owner has been evicted. The volume is deleted already and must not be used
+         * anymore.<br>
+         *
+         * This is called on the thread that caused the eviction, with the cache locked.
+         *
+         * @param volume the evicted volume
+         */
+        void evicted(Viewer3DNodeVolume volume);
+    }
+
+    private static final class Entry {
+
+        private final WeakReference<Object> m_image;
+
+        private final Viewer3DNodeVolume m_volume;
+
+        private Owner m_owner;
+
+        private Entry(final Object image, final Viewer3DNodeVolume volume, final Owner owner) {
+            m_image = new WeakReference<Object>(image);
+            m_volume = volume;
+            m_owner = owner;
+        }
+    }
+
+    // refers to an image weakly and compares by identity, so that images that are equal still get their own volumes
+    private static final class IdentityReference extends WeakReference<Object> {
+
+        private final int m_hash;
+
+        private IdentityReference(final Object image, final ReferenceQueue<Object> queue) {
+            super(image, queue);
+            m_hash = System.identityHashCode(image);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof IdentityReference)) {
+                return false;
+            }
+            final Object image = get();
+            return (image != null) && (image == ((IdentityReference)obj).get());
+        }
+    }
+
+    // identifies a volume of an image without referencing the image
+    private static final class ImageKey {
+
+        private final long m_image;
+
+        private final Viewer3DNodeAxes.VolumeKey m_volume;
+
+        private final int m_hash;
+
+        private ImageKey(final long image, final Viewer3DNodeAxes.VolumeKey volume) {
+            m_image = image;
+            m_volume = volume;
+            m_hash = (31 * volume.hashCode()) + (int)(image ^ (image >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof ImageKey)) {
+                return false;
+            }
+            final ImageKey other = (ImageKey)obj;
+            return (m_image == other.m_image) && m_volume.equals(other.m_volume);
+        }
+    }
+
+    // in access order, so that the first entry is the least recently used one
+    private final LinkedHashMap<ImageKey, Entry> m_entries = new LinkedHashMap<ImageKey, Entry>(16, 0.75f, true);
+
+    // numbers the images, without keeping them alive
+    private final Map<IdentityReference, Long> m_ids = new HashMap<IdentityReference, Long>();
+
+    // the references to the images that have been collected, their ids are removed
+    private final ReferenceQueue<Object> m_collected = new ReferenceQueue<Object>();
+
+    private long m_nextId = 0;
+
+    // the keys each owner must keep
+    private final Map<Owner, Set<ImageKey>> m_pinned = new IdentityHashMap<Owner, Set<ImageKey>>();
+
+    private long m_budget;
+
+    private final AtomicLong m_hits = new AtomicLong();
+
+    private final AtomicLong m_misses = new AtomicLong();
+
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    /**
+     * Get the cache shared by all views.
+     *
+     * @return the shared cache
+     */
+    public static Viewer3DNodeVolumeCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set up a cache with the default budget.
+     */
+    public Viewer3DNodeVolumeCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Set up a cache.
+     *
+     * @param budget the number of bytes the volumes may take
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public Viewer3DNodeVolumeCache(final long budget) {
+        setBudget(budget);
+    }
+
+    private ImageKey getKey(final Object image, final Viewer3DNodeAxes.VolumeKey key) {
+        Reference<?> collected;
+        while ((collected = m_collected.poll()) != null) {
+            m_ids.remove(collected);
+        }
+
+        Long id = m_ids.get(new IdentityReference(image, null));
+        if (id == null) {
+            id = Long.valueOf(m_nextId++);
+            m_ids.put(new IdentityReference(image, m_collected), id);
+        }
+        return new ImageKey(id.longValue(), key);
+    }
+
+    /**
+     * Look up a volume, mark it as used and pin it for the owner.
+     *
+     * @param owner the owner that wants to use the volume
+     * @param image the image the volume shows
+     * @param key the key of the volume
+     * @return the volume, or {@code null} if it is not cached or used by another owner
+     */
+    public final synchronized Viewer3DNodeVolume get(final Owner owner, final Object image,
+            final Viewer3DNodeAxes.VolumeKey key) {
+        final ImageKey k = getKey(image, key);
+        final Entry e = m_entries.get(k);
+        if ((e == null) || ((e.m_owner != null) && (e.m_owner != owner))) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+
+        m_hits.incrementAndGet();
+        e.m_owner = owner;
+        pin(owner, k);
+        return e.m_volume;
+    }
+
+    /**
+     * Check whether the owner could get a volume, without marking it as used or counting a hit or miss.
+     *
+     * @param owner the owner that wants to use the volume
+     * @param image the image the volume shows
+     * @param key the key of the volume
+     * @return whether the volume is cached and not used by another owner
+     */
+    public final synchronized boolean contains(final Owner owner, final Object image,
+            final Viewer3DNodeAxes.VolumeKey key) {
+        final Entry e = m_entries.get(getKey(image, key));
+        return (e != null) && ((e.m_owner == null) || (e.m_owner == owner));
+    }
+
+    /**
+     * Add a volume as the most recently used one and pin it for the owner.<br>
+     *
+     * The cache is not trimmed here, as the volume may still be empty. Call
+     * {@link #trim(Owner, Object, Collection)} once it is filled.
+     *
+     * @param owner the owner of the volume
+     * @param image the image the volume shows
+     * @param key the key of the volume
+     * @param volume the volume
+     * @return whether the volume has been added, it is not if another owner uses a volume with the same key
+     */
+    public final synchronized boolean put(final Owner owner, final Object image, final Viewer3DNodeAxes.VolumeKey key,
+                                          final Viewer3DNodeVolume volume) {
+        final ImageKey k = getKey(image, key);
+        final Entry old = m_entries.get(k);
+        if (old != null) {
+            if ((old.m_owner != null) && (old.m_owner != owner)) {
+                return false;
+            }
+            if (old.m_volume != volume) {
+                old.m_volume.delete(false);
+            }
+        }
+
+        m_entries.put(k, new Entry(image, volume, owner));
+        pin(owner, k);
+        return true;
+    }
+
+    /**
+     * Add a volume that has been loaded ahead of time, if it is not cached yet and fits into the budget without
+     * evicting another volume. It is not pinned.
+     *
+     * @param owner the owner of the volume
+     * @param image the image the volume shows
+     * @param key the key of the volume
+     * @param volume the volume
+     * @return whether the volume has been added, if not the caller still owns it
+     */
+    public final synchronized boolean offer(final Owner owner, final Object image, final Viewer3DNodeAxes.VolumeKey key,
+                                            final Viewer3DNodeVolume volume) {
+        final ImageKey k = getKey(image, key);
+        if (m_entries.containsKey(k) || ((getSize() + volume.getMemorySize()) > m_budget)) {
+            return false;
+        }
+        m_entries.put(k, new Entry(image, volume, owner));
+        return true;
+    }
+
+    private void pin(final Owner owner, final ImageKey key) {
+        Set<ImageKey> pinned = m_pinned.get(owner);
+        if (pinned == null) {
+            pinned = new HashSet<ImageKey>();
+            m_pinned.put(owner, pinned);
+        }
+        pinned.add(key);
+    }
+
+    /**
+     * Replace the volumes the owner has pinned and evict the least recently used volumes until the cached volumes fit
+     * into the budget again. The evicted volumes are deleted, their owners are told about it.
+     *
+     * @param owner the owner that trims the cache
+     * @param image the image of the owner
+     * @param keep the keys of the volumes of the owner that are in use and must not be evicted
+     */
+    public final synchronized void trim(final Owner owner, final Object image,
+            final Collection<Viewer3DNodeAxes.VolumeKey> keep) {
+        final Set<ImageKey> pinned = new HashSet<ImageKey>();
+        for (final Viewer3DNodeAxes.VolumeKey key : keep) {
+            pinned.add(getKey(image, key));
+        }
+        m_pinned.put(owner, pinned);
+
+        final List<Entry> evicted = new ArrayList<Entry>();
+
+        // the volumes of images that are gone can not be asked for anymore
+        Iterator<Map.Entry<ImageKey, Entry>> it = m_entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Entry e = it.next().getValue();
+            if (e.m_image.get() == null) {
+                it.remove();
+                evicted.add(e);
+            }
+        }
+
+        // the volumes are measured again each time, as their images are swapped while they are loaded
+        long size = getSize();
+
+        it = m_entries.entrySet().iterator();
+        while ((size > m_budget) && it.hasNext()) {
+            final Map.Entry<ImageKey, Entry> me = it.next();
+            final Entry e = me.getValue();
+            if (!isPinned(e, me.getKey())) {
+                size -= e.m_volume.getMemorySize();
+                it.remove();
+                evicted.add(e);
+            }
+        }
+
+        for (final Entry e : evicted) {
+            e.m_volume.delete(false);
+            m_evictions.incrementAndGet();
+            if (e.m_owner != null) {
+                e.m_owner.evicted(e.m_volume);
+            }
+        }
+    }
+
+    private boolean isPinned(final Entry e, final ImageKey key) {
+        if (e.m_owner == null) {
+            return false;
+        }
+        final Set<ImageKey> pinned = m_pinned.get(e.m_owner);
+        return (pinned != null) && pinned.contains(key);
+    }
+
+    /**
+     * Evict and delete a volume of the owner, e.g. because it will never be complete.
+     *
+     * @param owner the owner of the volume
+     * @param image the image the volume shows
+     * @param key the key of the volume
+     */
+    public final synchronized void discard(final Owner owner, final Object image,
+            final Viewer3DNodeAxes.VolumeKey key) {
+        final ImageKey k = getKey(image, key);
+        final Entry e = m_entries.get(k);
+        if ((e != null) && (e.m_owner == owner)) {
+            m_entries.remove(k);
+            e.m_volume.delete(false);
+            final Set<ImageKey> pinned = m_pinned.get(owner);
+            if (pinned != null) {
+                pinned.remove(k);
+            }
+        }
+    }
+
+    /**
+     * Give up all volumes of an owner, so that other owners may use them. The volumes stay cached until they are
+     * evicted.
+     *
+     * @param owner the owner
+     */
+    public final synchronized void release(final Owner owner) {
+        m_pinned.remove(owner);
+        for (final Entry e : m_entries.values()) {
+            if (e.m_owner == owner) {
+                e.m_owner = null;
+            }
+        }
+    }
+
+    /**
+     * Delete all cached volumes that are not used by an owner.
+     */
+    public final synchronized void clear() {
+        final Iterator<Entry> it = m_entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry e = it.next();
+            if (e.m_owner == null) {
+                e.m_volume.delete(false);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the native memory currently held by the cached volumes.
+     *
+     * @return the size in bytes
+     */
+    public final synchronized long getSize() {
+        long size = 0;
+        for (final Entry e : m_entries.values()) {
+            size += e.m_volume.getMemorySize();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of cached volumes.
+     *
+     * @return the number of volumes
+     */
+    public final synchronized int getCount() {
+        return m_entries.size();
+    }
+
+    /**
+     * Set the number of bytes the cached volumes may take. The new budget applies from the next call to
+     * {@link #trim(Owner, Object, Collection)} on.
+     *
+     * @param budget the budget in bytes, {@link Long#MAX_VALUE} for no bound
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public final synchronized void setBudget(final long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("The budget must not be negative!");
+        }
+        m_budget = budget;
+    }
+
+    /**
+     * Gets the number of bytes the cached volumes may take.
+     *
+     * @return the budget in bytes
+     */
+    public final synchronized long getBudget() {
+        return m_budget;
+    }
+
+    /**
+     * Gets the number of lookups that found their volume.
+     *
+     * @return the number of hits
+     */
+    public final long getHits() {
+        return m_hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that did not find their volume.
+     *
+     * @return the number of misses
+     */
+    public final long getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * Gets the number of volumes that have been evicted to stay within the budget.
+     *
+     * @return the number of evictions
+     */
+    public final long getEvictions() {
+        return m_evictions.get();
+    }
+}
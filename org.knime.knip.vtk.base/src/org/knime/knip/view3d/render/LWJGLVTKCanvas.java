@@ -55,6 +55,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import org.knime.core.node.NodeLogger;
 import org.lwjgl.LWJGLException;
 import org.lwjgl.opengl.AWTGLCanvas;
+import org.lwjgl.opengl.GL11;
 
 import vtk.vtkGenericJavaRenderWindow;
 import vtk.vtkRenderWindow;
@@ -121,6 +122,10 @@ class LWJGLVTKCanvas extends AWTGLCanvas {
         public void rendering(LWJGLVTKCanvas src);
     }
 
+    public interface PostRenderOperation {
+        public void rendered(LWJGLVTKCanvas src, long nanos);
+    }
+
     // use this to check wheter we can make the context active or not
     private boolean initGL = false;
 
@@ -128,6 +133,9 @@ class LWJGLVTKCanvas extends AWTGLCanvas {
     // Useful for catching renderings prompted by a resize.
     private PreRenderOperation preRender = null;
 
+    // This functor will be run after every render, with the time vtk took to render.
+    private PostRenderOperation postRender = null;
+
     /**
      * This constructor sets up a completly new LWJGLVTKCanvas.<br>
      * 
@@ -201,12 +209,20 @@ class LWJGLVTKCanvas extends AWTGLCanvas {
             preRender.rendering(this);
         }
 
+        final long start = System.nanoTime();
         rw.Render(); // without this there is no leak!
+        // the gpu mappers only queue their work, wait for it but not for the swap, which may wait for the vsync
+        GL11.glFinish();
+        final long nanos = System.nanoTime() - start;
         try {
             swapBuffers();
         } catch (final LWJGLException e) {
             e.printStackTrace();
         }
+
+        if (postRender != null) {
+            postRender.rendered(this, nanos);
+        }
     }
 
     @Override
@@ -291,6 +307,14 @@ class LWJGLVTKCanvas extends AWTGLCanvas {
         this.preRender = preRender;
     }
 
+    public PostRenderOperation getPostRender() {
+        return postRender;
+    }
+
+    public void setPostRender(final PostRenderOperation postRender) {
+        this.postRender = postRender;
+    }
+
     public void lock() {
         this.lock.lock();
     }
@@ -96,6 +96,36 @@ class LWJGLVTKInteractiveCanvas extends LWJGLVTKCanvas implements MouseListener,
 
     protected int lastY = 0;
 
+    /**
+     * Is informed whenever the user starts or stops to drag in the canvas.
+     */
+    public interface InteractionListener {
+        public void interactionStarted(LWJGLVTKInteractiveCanvas src);
+
+        public void interactionEnded(LWJGLVTKInteractiveCanvas src);
+    }
+
+    private InteractionListener interactionListener = null;
+
+    private boolean interacting = false;
+
+    // the frames per second vtk should aim at during an interaction
+    private double interactiveUpdateRate = 5.0;
+
+    // the time in ms the mouse has to rest during a drag until the interaction counts as ended
+    private static final int IDLE_DELAY = 300;
+
+    // renders a full quality frame once the drag rests
+    private final Timer idleTimer = new Timer(IDLE_DELAY, new ActionListener() {
+        @Override
+        public void actionPerformed(final ActionEvent e) {
+            if (interacting) {
+                endInteraction();
+                Render();
+            }
+        }
+    });
+
     /**
      * This constructor reconstructs a LWJGLVTKInteractiveCanvas.
      * 
@@ -136,6 +166,8 @@ class LWJGLVTKInteractiveCanvas extends LWJGLVTKCanvas implements MouseListener,
         iren.SetSize(200, 200);
         iren.ConfigureEvent();
 
+        idleTimer.setRepeats(false);
+
         addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(final ComponentEvent event) {
@@ -186,6 +218,46 @@ class LWJGLVTKInteractiveCanvas extends LWJGLVTKCanvas implements MouseListener,
         iren.SetInteractorStyle(style);
     }
 
+    private void startInteraction() {
+        if (!interacting) {
+            interacting = true;
+            rw.SetDesiredUpdateRate(interactiveUpdateRate);
+
+            if (interactionListener != null) {
+                interactionListener.interactionStarted(this);
+            }
+        }
+    }
+
+    private void endInteraction() {
+        idleTimer.stop();
+
+        if (interacting) {
+            interacting = false;
+            rw.SetDesiredUpdateRate(0.01);
+
+            if (interactionListener != null) {
+                interactionListener.interactionEnded(this);
+            }
+        }
+    }
+
+    public double getInteractiveUpdateRate() {
+        return interactiveUpdateRate;
+    }
+
+    public void setInteractiveUpdateRate(final double rate) {
+        this.interactiveUpdateRate = rate;
+    }
+
+    public InteractionListener getInteractionListener() {
+        return interactionListener;
+    }
+
+    public void setInteractionListener(final InteractionListener listener) {
+        this.interactionListener = listener;
+    }
+
     @Override
     public void mouseClicked(final MouseEvent e) {
     }
@@ -195,8 +267,10 @@ class LWJGLVTKInteractiveCanvas extends LWJGLVTKCanvas implements MouseListener,
         if (ren.VisibleActorCount() == 0) {
             return;
         }
+
+        startInteraction();
+
         lock();
-        rw.SetDesiredUpdateRate(5.0);
         lastX = e.getX();
         lastY = e.getY();
 
@@ -217,7 +291,8 @@ class LWJGLVTKInteractiveCanvas extends LWJGLVTKCanvas implements MouseListener,
 
     @Override
     public void mouseReleased(final MouseEvent e) {
-        rw.SetDesiredUpdateRate(0.01);
+        // must happen before the release event, which renders the final image
+        endInteraction();
 
         ctrlPressed = (e.getModifiers() & InputEvent.CTRL_MASK) == InputEvent.CTRL_MASK ? 1 : 0;
         shiftPressed = (e.getModifiers() & InputEvent.SHIFT_MASK) == InputEvent.SHIFT_MASK ? 1 : 0;
@@ -277,6 +352,10 @@ class LWJGLVTKInteractiveCanvas extends LWJGLVTKCanvas implements MouseListener,
             return;
         }
 
+        // the drag goes on after it has rested
+        startInteraction();
+        idleTimer.restart();
+
         ctrlPressed = (e.getModifiers() & InputEvent.CTRL_MASK) == InputEvent.CTRL_MASK ? 1 : 0;
         shiftPressed = (e.getModifiers() & InputEvent.SHIFT_MASK) == InputEvent.SHIFT_MASK ? 1 : 0;
 
@@ -0,0 +1,147 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2013
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.view3d.render;
+
+/**
+ * Chooses how much to thin out the samples of the volumes during an interaction, so that a frame takes about as long
+ * as the target frame time.<br>
+ * 
+ * The factor is adapted after every frame from the time it took. Thinning out the samples by a factor makes a frame
+ * roughly the square of the factor faster, see
+ * {@link org.knime.knip.view3d.image.Viewer3DNodeVolume#setSampleDistanceFactor(double)}.
+ * 
+ * @author <a href="mailto:dietzc85@googlemail.com">Christian Dietz</a>
+ * @author <a href="mailto:horn_martin@gmx.de">Martin Horn</a>
+ * @author <a href="mailto:michael.zinsmaier@googlemail.com">Michael Zinsmaier</a>
+ * @author Clemens Müthing (clemens.muething@uni-konstanz.de)
+ */
+final class Viewer3DNodeFrameTimeController {
+
+    /**
+     * The default time in ms a frame should take during an interaction.
+     */
+    static final double DEFAULT_TARGET = 50.0;
+
+    // beyond this the volumes are hardly recognizable anymore
+    private static final double MAX_FACTOR = 8.0;
+
+    // changes smaller than this are not worth rendering differently
+    private static final double MIN_CHANGE = 0.1;
+
+    private double m_target = DEFAULT_TARGET;
+
+    private double m_factor = 1.0;
+
+    /**
+     * Set the time a frame should take during an interaction.
+     * 
+     * @param ms the time in ms
+     */
+    void setTarget(final double ms) {
+        if (ms <= 0) {
+            throw new IllegalArgumentException("The target frame time must be positive!");
+        }
+        m_target = ms;
+    }
+
+    /**
+     * @return the time in ms a frame should take during an interaction
+     */
+    double getTarget() {
+        return m_target;
+    }
+
+    /**
+     * @return the frames per second that correspond to the target frame time
+     */
+    double getUpdateRate() {
+        return 1000.0 / m_target;
+    }
+
+    /**
+     * @return the current factor, 1 for full quality
+     */
+    double getFactor() {
+        return m_factor;
+    }
+
+    /**
+     * Adapt the factor to the time the last frame took.
+     * 
+     * @param nanos the time in ns
+     * @return whether the factor has changed
+     */
+    boolean frameRendered(final long nanos) {
+        final double ms = nanos / 1e6;
+
+        // the factor that would hit the target is the square root of the ratio, but only half of the way is taken at
+        // once, so that a single slow frame does not make the view flicker
+        double factor = m_factor * Math.pow(ms / m_target, 0.25);
+        factor = Math.max(1.0, Math.min(MAX_FACTOR, factor));
+
+        if (Math.abs(factor - m_factor) < (MIN_CHANGE * m_factor)) {
+            return false;
+        }
+        m_factor = factor;
+        return true;
+    }
+
+    /**
+     * Go back to full quality.
+     * 
+     * @return whether the factor has changed
+     */
+    boolean reset() {
+        if (m_factor == 1.0) {
+            return false;
+        }
+        m_factor = 1.0;
+        return true;
+    }
+}
@@ -52,11 +52,13 @@ import java.util.LinkedList;
 import java.util.List;
 
 import org.knime.knip.core.ui.event.EventService;
+import org.knime.knip.view3d.image.Viewer3DNodeCompositeVolume;
 import org.knime.knip.view3d.image.Viewer3DNodeVolume;
 
 import vtk.vtkBoxWidget;
 import vtk.vtkPlanes;
 import vtk.vtkProp;
+import vtk.vtkProp3D;
 
 /**
  * This class contains the main render window, doing the volume rendering.
@@ -81,6 +83,14 @@ public class Viewer3DNodeMainRenderer extends Viewer3DNodeRenderer {
 
     private List<Viewer3DNodeVolume> m_volumes = new LinkedList<Viewer3DNodeVolume>();
 
+    // whether volumes of the same size are rendered as the components of one volume
+    private boolean m_composite = false;
+
+    private final List<Viewer3DNodeCompositeVolume> m_composites = new LinkedList<Viewer3DNodeCompositeVolume>();
+
+    // the props currently shown
+    private List<vtkProp> m_props = new LinkedList<vtkProp>();
+
     /**
      * {@inheritDoc}
      * 
@@ -98,6 +108,46 @@ public class Viewer3DNodeMainRenderer extends Viewer3DNodeRenderer {
         registerWidget(m_box);
     }
 
+    /**
+     * Rebuild the transfer functions that have changed since the last frame.<br>
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    protected final void prepareRender() {
+        updateTransferFunctions();
+    }
+
+    /**
+     * Render the coarse interaction images of the volumes while the user drags.<br>
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    protected final void setInteractive(final boolean interactive) {
+        for (final Viewer3DNodeVolume v : m_volumes) {
+            v.setInteractive(interactive);
+        }
+        for (final Viewer3DNodeCompositeVolume c : m_composites) {
+            c.updateSampleDistances();
+        }
+    }
+
+    /**
+     * Thin out the samples of the volumes while the user drags.<br>
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    protected final void setSampleDistanceFactor(final double factor) {
+        for (final Viewer3DNodeVolume v : m_volumes) {
+            v.setSampleDistanceFactor(factor);
+        }
+        for (final Viewer3DNodeCompositeVolume c : m_composites) {
+            c.setSampleDistanceFactor(factor);
+        }
+    }
+
     /**
      * Set the volumes to be rendered.<br>
      * 
@@ -108,13 +158,28 @@ public class Viewer3DNodeMainRenderer extends Viewer3DNodeRenderer {
     @Override
     protected final List<vtkProp> addViewProps(final List<Viewer3DNodeVolume> volumes) {
         m_volumes = volumes;
+        deleteComposites();
 
         final List<vtkProp> result = new LinkedList<vtkProp>();
 
         if (m_volumes.size() > 0) {
-            // add the volumes to the renderer
-            for (final Viewer3DNodeVolume v : m_volumes) {
-                result.add(v.getVolume());
+            // add the volumes to the renderer, in groups of up to four if they are combined
+            int i = 0;
+            while (i < m_volumes.size()) {
+                final List<Viewer3DNodeVolume> group =
+                        m_volumes.subList(i,
+                                          Math.min(i + Viewer3DNodeCompositeVolume.MAX_COMPONENTS, m_volumes.size()));
+
+                if (m_composite && Viewer3DNodeCompositeVolume.canCombine(group)) {
+                    final Viewer3DNodeCompositeVolume composite = new Viewer3DNodeCompositeVolume(group);
+                    m_composites.add(composite);
+                    result.add(composite.getVolume());
+                } else {
+                    for (final Viewer3DNodeVolume v : group) {
+                        result.add(v.getProp());
+                    }
+                }
+                i += group.size();
             }
 
             // add the bounding box of the first actor as well, they all have
@@ -125,7 +190,7 @@ public class Viewer3DNodeMainRenderer extends Viewer3DNodeRenderer {
             }
 
             // attach the box only to the first volume
-            m_box.SetProp3D(m_volumes.get(0).getVolume());
+            m_box.SetProp3D((vtkProp3D)result.get(0));
 
             // use the current settings of the box to clip
             if (m_first) {
@@ -145,15 +210,24 @@ public class Viewer3DNodeMainRenderer extends Viewer3DNodeRenderer {
             }
         }
 
+        m_props = result;
         return result;
 
     }
 
+    private void deleteComposites() {
+        for (final Viewer3DNodeCompositeVolume c : m_composites) {
+            c.delete();
+        }
+        m_composites.clear();
+    }
+
     @Override
     protected final void deleteAdditional() {
         m_box.RemoveAllObservers();
         m_box.Delete();
         m_volumes.clear();
+        deleteComposites();
 
         m_box = null;
         m_volumes = null;
@@ -169,6 +243,50 @@ public class Viewer3DNodeMainRenderer extends Viewer3DNodeRenderer {
         for (final Viewer3DNodeVolume v : m_volumes) {
             v.setClippingPlanes(planes);
         }
+        for (final Viewer3DNodeCompositeVolume c : m_composites) {
+            c.setClippingPlanes(planes);
+        }
+    }
+
+    /**
+     * Rebuild the transfer functions of the volumes that are out of date, let the combined volumes use the transfer
+     * functions their volumes are rendered with, crop the volumes to what these functions leave visible and color the
+     * isosurfaces. This is done before every frame, call it directly if the slices need the transfer functions first.
+     */
+    public final void updateTransferFunctions() {
+        for (final Viewer3DNodeVolume v : m_volumes) {
+            v.flushTransferFunctions();
+            v.updateCropping();
+            v.updateSurface();
+        }
+        for (final Viewer3DNodeCompositeVolume c : m_composites) {
+            c.updateTransferFunctions();
+        }
+    }
+
+    /**
+     * Use this method to toggle whether volumes of the same size, e.g. the channels of an image, are rendered as the
+     * components of a single volume, in one pass.
+     */
+    public final void toggleComposite() {
+        m_composite = !m_composite;
+        refreshVolumes();
+    }
+
+    /**
+     * Display the volumes again, keeping the camera, e.g. after some have switched between being rendered as a volume
+     * and as an isosurface.
+     */
+    public final void refreshVolumes() {
+        if (m_volumes.size() > 0) {
+            for (final vtkProp p : m_props) {
+                removeProp(p);
+            }
+            for (final vtkProp p : addViewProps(m_volumes)) {
+                addProp(p);
+            }
+            render();
+        }
     }
 
     /**
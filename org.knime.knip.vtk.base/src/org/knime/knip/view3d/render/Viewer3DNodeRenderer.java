@@ -118,6 +118,11 @@ public abstract class Viewer3DNodeRenderer extends ViewerComponent {
 
     private HierarchyListener m_hierarchyListener;
 
+    // adapts the quality to the frame time while the user drags
+    private final Viewer3DNodeFrameTimeController m_frameTime = new Viewer3DNodeFrameTimeController();
+
+    private boolean m_interactive = false;
+
     /**
      * Set up a new MainRenderer.
      * 
@@ -223,6 +228,38 @@ public abstract class Viewer3DNodeRenderer extends ViewerComponent {
         try {
             m_renderWindowCanvas = new LWJGLVTKInteractiveCanvas();
             m_renderWindowCanvas.setInteractorStyle(style);
+            m_renderWindowCanvas.setInteractionListener(new LWJGLVTKInteractiveCanvas.InteractionListener() {
+                @Override
+                public void interactionStarted(final LWJGLVTKInteractiveCanvas src) {
+                    m_interactive = true;
+                    setInteractive(true);
+                }
+
+                @Override
+                public void interactionEnded(final LWJGLVTKInteractiveCanvas src) {
+                    m_interactive = false;
+                    if (m_frameTime.reset()) {
+                        setSampleDistanceFactor(1.0);
+                    }
+                    setInteractive(false);
+                }
+            });
+            m_renderWindowCanvas.setPreRender(new LWJGLVTKCanvas.PreRenderOperation() {
+                @Override
+                public void rendering(final LWJGLVTKCanvas src) {
+                    prepareRender();
+                }
+            });
+            m_renderWindowCanvas.setPostRender(new LWJGLVTKCanvas.PostRenderOperation() {
+                @Override
+                public void rendered(final LWJGLVTKCanvas src, final long nanos) {
+                    // the next frame of the interaction is rendered with the adapted quality
+                    if (m_interactive && m_frameTime.frameRendered(nanos)) {
+                        setSampleDistanceFactor(m_frameTime.getFactor());
+                    }
+                }
+            });
+            m_renderWindowCanvas.setInteractiveUpdateRate(m_frameTime.getUpdateRate());
             m_renderer = m_renderWindowCanvas.GetRenderer();
             m_renderWindow = m_renderWindowCanvas.GetRenderWindow();
         } catch (final LWJGLException e) {
@@ -261,6 +298,50 @@ public abstract class Viewer3DNodeRenderer extends ViewerComponent {
         m_viewUp = m_renderer.GetActiveCamera().GetViewUp();
     }
 
+    /**
+     * Called when the user starts or stops to drag in the render window.<br>
+     * 
+     * Does nothing by default.
+     * 
+     * @param interactive whether the user is dragging
+     */
+    protected void setInteractive(final boolean interactive) {
+        // nothing to do
+    }
+
+    /**
+     * Called right before each frame is rendered, e.g. to bring everything that has changed since the last frame up to
+     * date at once.<br>
+     * 
+     * Does nothing by default.
+     */
+    protected void prepareRender() {
+        // nothing to do
+    }
+
+    /**
+     * Called during an interaction to thin out the samples of the volumes, so that a frame takes about the target
+     * frame time, and with 1 once the interaction has ended.<br>
+     * 
+     * Does nothing by default.
+     * 
+     * @param factor the factor, 1 for full quality
+     * @see Viewer3DNodeVolume#setSampleDistanceFactor(double)
+     */
+    protected void setSampleDistanceFactor(final double factor) {
+        // nothing to do
+    }
+
+    /**
+     * Set the time a frame should take while the user drags. The quality is lowered until the frames are that fast.
+     * 
+     * @param ms the time in ms, 50 by default
+     */
+    public final void setTargetFrameTime(final double ms) {
+        m_frameTime.setTarget(ms);
+        m_renderWindowCanvas.setInteractiveUpdateRate(m_frameTime.getUpdateRate());
+    }
+
     /**
      * Extract the ViewProps to display from the volume and return them to the caller.<br>
      * 